@@ -0,0 +1,80 @@
+package com.clover.webhook;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Access token lookups from several threads at once, from the json file and from the mapped index.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class AccessTokenLookupBenchmark {
+
+  @Param({"1000", "100000"})
+  public int entries;
+
+  @Param({"file", "mapped"})
+  public String service;
+
+  private File directory;
+  private AccessTokenService accessTokenService;
+  private String[] merchantIds;
+
+  @Setup
+  public void setUp() throws IOException {
+    directory = BenchmarkFiles.createTempDirectory();
+    Map<String, String> tokens = BenchmarkFiles.tokens(entries);
+    merchantIds = tokens.keySet().toArray(new String[tokens.size()]);
+    if ("mapped".equals(service)) {
+      File index = new File(directory, "accessTokens.idx");
+      AccessTokenIndex.write(tokens, index);
+      accessTokenService = new MappedAccessTokenService(index);
+    } else {
+      FileStore fileStore = new FileStore(new File(directory, "accessTokens.json"));
+      fileStore.store(tokens);
+      accessTokenService = new FileAccessTokenService(fileStore, 250);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (accessTokenService instanceof FileAccessTokenService) {
+      ((FileAccessTokenService) accessTokenService).shutdown();
+    } else {
+      ((MappedAccessTokenService) accessTokenService).shutdown();
+    }
+    BenchmarkFiles.delete(directory);
+  }
+
+  @Benchmark
+  public String getAccessToken() {
+    return accessTokenService.getAccessToken(merchantIds[ThreadLocalRandom.current().nextInt(merchantIds.length)]);
+  }
+
+  @Benchmark
+  public String getAccessTokenMissing() {
+    return accessTokenService.getAccessToken("UNKNOWNMERCH0");
+  }
+}
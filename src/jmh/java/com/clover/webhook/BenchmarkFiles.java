@@ -0,0 +1,42 @@
+package com.clover.webhook;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Access token maps and scratch directories for the benchmarks.
+ */
+class BenchmarkFiles {
+
+  private BenchmarkFiles() {
+  }
+
+  /**
+   * @return a map of the merchant ids from BenchmarkMessages#merchantId to random tokens.
+   */
+  static Map<String, String> tokens(int entries) {
+    Map<String, String> tokens = new HashMap<String, String>();
+    for (int i = 0; i < entries; i++) {
+      tokens.put(BenchmarkMessages.merchantId(i), UUID.randomUUID().toString());
+    }
+    return tokens;
+  }
+
+  static File createTempDirectory() throws IOException {
+    return Files.createTempDirectory("webhook-benchmark").toFile();
+  }
+
+  static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
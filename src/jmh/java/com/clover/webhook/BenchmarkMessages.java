@@ -0,0 +1,43 @@
+package com.clover.webhook;
+
+/**
+ * Builds webhook messages for the benchmarks.
+ */
+class BenchmarkMessages {
+
+  private static final String[] OBJECT_TYPES = {"O", "P", "I", "C"};
+
+  private BenchmarkMessages() {
+  }
+
+  /**
+   * @return a merchant id like the ones Clover uses, 13 characters.
+   */
+  static String merchantId(int index) {
+    return String.format("MERCHANT%05d", index);
+  }
+
+  /**
+   * @return the json of a message with the given number of merchants, each with the given number of updates.
+   */
+  static String json(int merchants, int updatesPerMerchant) {
+    StringBuilder builder = new StringBuilder("{\"appId\":\"BENCHMARKAPP01\",\"merchants\":{");
+    long ts = 1445000000000L;
+    for (int m = 0; m < merchants; m++) {
+      if (m > 0) {
+        builder.append(',');
+      }
+      builder.append('"').append(merchantId(m)).append("\":[");
+      for (int u = 0; u < updatesPerMerchant; u++) {
+        if (u > 0) {
+          builder.append(',');
+        }
+        builder.append("{\"objectId\":\"").append(OBJECT_TYPES[u % OBJECT_TYPES.length]).append(':')
+            .append(String.format("OBJ%010d", m * updatesPerMerchant + u)).append("\",\"type\":\"UPDATE\",\"ts\":\"")
+            .append(ts++).append("\"}");
+      }
+      builder.append(']');
+    }
+    return builder.append("}}").toString();
+  }
+}
@@ -0,0 +1,86 @@
+package com.clover.webhook;
+
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WebHook.handleEvent dispatching a message to stub handlers that only walk the updates.
+ *
+ * The hook always has its default echo handlers, which print every update, so System.out is replaced with a stream
+ * that discards its output while this runs; what is left is the cost of building those lines and of the dispatch.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+
+  @Param({"1", "8"})
+  public int stubHandlers;
+
+  @Param({"10"})
+  public int merchants;
+
+  @Param({"10"})
+  public int updatesPerMerchant;
+
+  private WebHook webHook;
+  private WebHookMessage message;
+  private PrintStream originalOut;
+
+  @Setup
+  public void setUp(final Blackhole blackhole) {
+    originalOut = System.out;
+    System.setOut(new PrintStream(new OutputStream() {
+      public void write(int b) {
+      }
+
+      public void write(byte[] b, int off, int len) {
+      }
+    }));
+
+    message = new Gson().fromJson(BenchmarkMessages.json(merchants, updatesPerMerchant), WebHookMessage.class);
+    webHook = new WebHook();
+    for (int i = 0; i < stubHandlers; i++) {
+      webHook.addListener(new WebHookMessageHandler() {
+        public void handleEvent(WebHookMessage webHookEvent) {
+          for (Map.Entry<String, List<WebHookMessage.Update>> merchant : webHookEvent.getMerchants().entrySet()) {
+            for (WebHookMessage.Update update : merchant.getValue()) {
+              blackhole.consume(update.getObjectId());
+            }
+          }
+        }
+      });
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    System.setOut(originalOut);
+  }
+
+  @Benchmark
+  public void handleEvent() {
+    webHook.handleEvent(message);
+  }
+}
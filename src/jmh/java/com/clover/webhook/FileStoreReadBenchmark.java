@@ -0,0 +1,59 @@
+package com.clover.webhook;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FileStore.read() of an access token file, from several threads at once, for each kind of store.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class FileStoreReadBenchmark {
+
+  @Param({"100", "10000"})
+  public int entries;
+
+  @Param({"json", "log"})
+  public String storeType;
+
+  private File directory;
+  private FileStore fileStore;
+
+  @Setup
+  public void setUp() throws IOException {
+    directory = BenchmarkFiles.createTempDirectory();
+    fileStore = FileStore.create(new File(directory, "accessTokens.json"), storeType);
+    fileStore.store(BenchmarkFiles.tokens(entries));
+  }
+
+  @TearDown
+  public void tearDown() {
+    BenchmarkFiles.delete(directory);
+  }
+
+  @Benchmark
+  public Map<String, String> read() {
+    return fileStore.read();
+  }
+}
@@ -0,0 +1,75 @@
+package com.clover.webhook;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a rest url for an update, the way DetailedWebHookMessageHandler used to (setVariables, a regex
+ * replaceAll per variable) against the precompiled UrlTemplate it uses now.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UrlBuildBenchmark {
+
+  private static final String SERVER = "https://apidev1.dev.clover.com:443";
+
+  private final String merchantId = "BBFF8NBCXEMDT";
+  private final String orderId = "1DM6YH6WZF7QY";
+  private final String accessToken = "16258cd4-3c1b-3b74-1170-37ebd36bb331";
+  private UrlTemplate template;
+
+  @Setup
+  public void setUp() {
+    Map<String, String> constants = new HashMap<String, String>();
+    constants.put(DetailedWebHookMessageHandler.SERVER_KEY, SERVER);
+    template = UrlTemplate.compile(DetailedWebHookMessageHandler.V3_GET_SINGLE_ORDER, constants,
+        DetailedWebHookMessageHandler.MERCHANT_KEY, DetailedWebHookMessageHandler.ORDER_KEY,
+        DetailedWebHookMessageHandler.ACCESS_TKN_KEY);
+  }
+
+  @Benchmark
+  public String setVariables() {
+    // The variables were put in a map for every update.
+    Map<String, String> variableMap = new HashMap<String, String>();
+    variableMap.put(DetailedWebHookMessageHandler.SERVER_KEY, SERVER);
+    variableMap.put(DetailedWebHookMessageHandler.ACCESS_TKN_KEY, accessToken);
+    variableMap.put(DetailedWebHookMessageHandler.MERCHANT_KEY, merchantId);
+    variableMap.put(DetailedWebHookMessageHandler.ORDER_KEY, orderId);
+    return setVariables(DetailedWebHookMessageHandler.V3_GET_SINGLE_ORDER, variableMap);
+  }
+
+  @Benchmark
+  public String urlTemplate() {
+    return template.expand(merchantId, orderId, accessToken);
+  }
+
+  /**
+   * The replacement that DetailedWebHookMessageHandler used before the templates were compiled.
+   */
+  private static String setVariables(String template, Map<String, String> variableMap) {
+    Set<String> keys = variableMap.keySet();
+    for (String key : keys) {
+      String bracedKey = "\\{" + key + "\\}";
+
+      template = template.replaceAll(bracedKey, variableMap.get(key));
+    }
+    return template;
+  }
+}
@@ -0,0 +1,55 @@
+package com.clover.webhook;
+
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deserializing a WebHookMessage with Gson, for messages of different sizes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WebHookMessageParseBenchmark {
+
+  @Param({"1", "10", "100"})
+  public int merchants;
+
+  @Param({"1", "10", "100"})
+  public int updatesPerMerchant;
+
+  private final Gson gson = new Gson();
+  private String json;
+  private byte[] payload;
+
+  @Setup
+  public void setUp() {
+    json = BenchmarkMessages.json(merchants, updatesPerMerchant);
+    payload = json.getBytes(Charset.forName("UTF-8"));
+  }
+
+  @Benchmark
+  public WebHookMessage fromString() {
+    return gson.fromJson(json, WebHookMessage.class);
+  }
+
+  @Benchmark
+  public WebHookMessage fromBytes() {
+    return JsonPayloads.read(gson, payload, WebHookMessage.class);
+  }
+}
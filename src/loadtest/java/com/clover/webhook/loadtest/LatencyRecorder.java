@@ -0,0 +1,43 @@
+package com.clover.webhook.loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Collects latencies so that percentiles can be reported at the end of a run.
+ */
+class LatencyRecorder {
+
+  private long[] values = new long[1024];
+  private int count;
+
+  synchronized void record(long nanos) {
+    if (count == values.length) {
+      values = Arrays.copyOf(values, values.length * 2);
+    }
+    values[count++] = nanos;
+  }
+
+  synchronized int count() {
+    return count;
+  }
+
+  /**
+   * @return the latencies at each of the percentiles, in milliseconds, followed by the maximum.
+   */
+  synchronized double[] percentiles(double... percentiles) {
+    long[] sorted = Arrays.copyOf(values, count);
+    Arrays.sort(sorted);
+    double[] result = new double[percentiles.length + 1];
+    for (int i = 0; i < percentiles.length; i++) {
+      result[i] = count == 0 ? 0 : sorted[Math.min(count - 1, (int) Math.ceil(percentiles[i] / 100 * count) - 1)] / 1e6;
+    }
+    result[percentiles.length] = count == 0 ? 0 : sorted[count - 1] / 1e6;
+    return result;
+  }
+
+  String summary() {
+    double[] p = percentiles(50, 90, 99, 99.9);
+    return String.format("n=%d p50=%.2fms p90=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms",
+        count(), p[0], p[1], p[2], p[3], p[4]);
+  }
+}
@@ -0,0 +1,359 @@
+package com.clover.webhook.loadtest;
+
+import com.clover.webhook.MetricsServlet;
+import com.clover.webhook.SaveAuth;
+import com.clover.webhook.WebHook;
+import com.google.gson.Gson;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A load test of the webhook servlets.
+ *
+ * This starts the WebHook, SaveAuth and Metrics servlets on an embedded Jetty, pointed at a StubCloverApi, registers
+ * an access token for every merchant through /saveauth, then posts generated messages to /webhook (and now and then a
+ * token to /saveauth) at the configured rate for the configured time.  Every second it prints the request rate, the
+ * responses and the queue depths reported by /metrics; at the end it reports the sustained rate, the response latency,
+ * and the end to end latency from sending a message to the fetch of its objects.
+ *
+ * Run it with
+ *   mvn -Ploadtest test-compile exec:exec -Dloadtest.args="-Drate=500 -Dduration=60"
+ *
+ * The settings are system properties:
+ *   duration           seconds to send for (30)
+ *   rate               messages per second (200)
+ *   shape              constant, ramp (from zero up to the rate) or burst (burstMultiplier times the rate for a fifth
+ *                      of each burstPeriod, and a quarter of the rate the rest of the time) (constant)
+ *   burstPeriod        seconds (10)
+ *   burstMultiplier    (5)
+ *   clients            threads sending requests (32)
+ *   merchants          (100)
+ *   updatesPerMessage  (5)
+ *   objectTypes        object type weights (O:40,P:30,I:20,C:10)
+ *   updateTypes        update type weights (UPDATE:80,CREATE:15,DELETE:5)
+ *   saveAuthPercent    percent of requests that go to /saveauth instead (1)
+ *   stubLatencyMillis  (20)
+ *   stubJitterMillis   (10)
+ *   stubErrorRate      fraction of rest calls that fail (0.01)
+ *   drainSeconds       how long to wait for the last messages to be processed (30)
+ *   param.NAME         an init parameter for the servlets, for example -Dparam.asyncIngestion=true
+ *   verbose            true to keep what the servlets print, which is otherwise thrown away (false)
+ *
+ * The access token file is written to the directory in the LOADTEST_DATA_DIR environment variable, which the
+ * loadtest profile sets to target/loadtest/.
+ */
+public class LoadTest {
+
+  private static final String DATA_DIR_ENV_VAR = "LOADTEST_DATA_DIR";
+
+  /**
+   * The report is printed here, System.out is left to the servlets.
+   */
+  private static final PrintStream out = System.out;
+
+  private final int duration = Integer.getInteger("duration", 30);
+  private final int rate = Integer.getInteger("rate", 200);
+  private final String shape = System.getProperty("shape", "constant");
+  private final int burstPeriod = Integer.getInteger("burstPeriod", 10);
+  private final int burstMultiplier = Integer.getInteger("burstMultiplier", 5);
+  private final int clients = Integer.getInteger("clients", 32);
+  private final int saveAuthPercent = Integer.getInteger("saveAuthPercent", 1);
+  private final int drainSeconds = Integer.getInteger("drainSeconds", 30);
+
+  private final WebHookFirehose firehose = new WebHookFirehose(Integer.getInteger("merchants", 100),
+      Integer.getInteger("updatesPerMessage", 5), System.getProperty("objectTypes", "O:40,P:30,I:20,C:10"),
+      System.getProperty("updateTypes", "UPDATE:80,CREATE:15,DELETE:5"));
+
+  private final LatencyRecorder responseLatency = new LatencyRecorder();
+  private final LatencyRecorder endToEndLatency = new LatencyRecorder();
+  private final Map<String, AtomicLong> responses = new ConcurrentHashMap<String, AtomicLong>();
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong accepted = new AtomicLong();
+  private final Map<String, Long> maxGauges = new TreeMap<String, Long>();
+
+  private final Gson gson = new Gson();
+  private StubCloverApi stubApi;
+  private Server server;
+  private String baseUrl;
+
+  public static void main(String[] args) throws Exception {
+    if (System.getenv(DATA_DIR_ENV_VAR) == null) {
+      out.println("Set " + DATA_DIR_ENV_VAR + " to a directory ending in a separator for the access token file");
+      System.exit(1);
+    }
+    new File(System.getenv(DATA_DIR_ENV_VAR)).mkdirs();
+    if (!Boolean.getBoolean("verbose")) {
+      // The handlers print every update, which would swamp the report and slow everything down.
+      System.setOut(new PrintStream(new OutputStream() {
+        public void write(int b) {
+        }
+
+        public void write(byte[] b, int off, int len) {
+        }
+      }));
+    }
+    new LoadTest().run();
+    System.exit(0);
+  }
+
+  private void run() throws Exception {
+    stubApi = new StubCloverApi(Integer.getInteger("stubLatencyMillis", 20), Integer.getInteger("stubJitterMillis", 10),
+        Double.parseDouble(System.getProperty("stubErrorRate", "0.01")), new StubCloverApi.FetchListener() {
+      public void fetched(String objectId) {
+        long nanos = firehose.fetched(objectId);
+        if (nanos >= 0) {
+          endToEndLatency.record(nanos);
+        }
+      }
+    });
+    stubApi.start();
+    startWebApp();
+    try {
+      registerMerchants();
+      long sendNanos = send();
+      drain();
+      report(sendNanos);
+    } finally {
+      server.stop();
+      stubApi.stop();
+    }
+  }
+
+  private void startWebApp() throws Exception {
+    server = new Server(new QueuedThreadPool(Math.max(200, clients * 2), 16));
+    ServerConnector connector = new ServerConnector(server);
+    connector.setPort(0);
+    server.addConnector(connector);
+    ServletContextHandler context = new ServletContextHandler();
+    context.setContextPath("/");
+    context.addServlet(servlet(WebHook.class, 0), "/webhook");
+    context.addServlet(servlet(SaveAuth.class, 1), "/saveauth");
+    context.addServlet(new ServletHolder(new MetricsServlet()), "/metrics");
+    server.setHandler(context);
+    server.start();
+    baseUrl = "http://localhost:" + connector.getLocalPort();
+    out.println("Webhook at " + baseUrl + "/webhook, stub api at " + stubApi.getUrl());
+  }
+
+  private ServletHolder servlet(Class<? extends javax.servlet.Servlet> servletClass, int initOrder) {
+    ServletHolder holder = new ServletHolder(servletClass);
+    holder.setInitOrder(initOrder);
+    holder.setInitParameter("cloverServer", stubApi.getUrl());
+    holder.setInitParameter("accessTokenDirectoryEnvVar", DATA_DIR_ENV_VAR);
+    holder.setInitParameter("accessTokenFileName", "loadtestAccessTokens.json");
+    Properties properties = System.getProperties();
+    for (String name : properties.stringPropertyNames()) {
+      if (name.startsWith("param.")) {
+        holder.setInitParameter(name.substring("param.".length()), properties.getProperty(name));
+      }
+    }
+    return holder;
+  }
+
+  /**
+   * Saves a token for every merchant, then gives the webhook time to reload them.
+   */
+  private void registerMerchants() throws Exception {
+    Map<String, String> tokens = new HashMap<String, String>();
+    for (String merchantId : firehose.getMerchantIds()) {
+      tokens.put(merchantId, UUID.randomUUID().toString());
+    }
+    int status = post("/saveauth", gson.toJson(tokens));
+    out.println("Registered " + tokens.size() + " merchants: " + status);
+    Thread.sleep(1000);
+  }
+
+  /**
+   * Sends at the configured rate and shape for the configured duration.  Sending is open loop: when every client
+   * is busy, requests wait in the client queue, and that time is part of their response latency.
+   *
+   * @return how long the sending took.
+   */
+  private long send() throws Exception {
+    final ThreadPoolExecutor clientPool = new ThreadPoolExecutor(clients, clients, 0, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>());
+    long start = System.nanoTime();
+    long end = start + TimeUnit.SECONDS.toNanos(duration);
+    long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+    long sentAtLastReport = 0;
+    double owed = 0;
+    long last = start;
+    while (System.nanoTime() < end) {
+      Thread.sleep(5);
+      long now = System.nanoTime();
+      owed += currentRate((now - start) / 1e9) * (now - last) / 1e9;
+      last = now;
+      for (; owed >= 1; owed--) {
+        final long queuedAt = System.nanoTime();
+        clientPool.execute(new Runnable() {
+          public void run() {
+            sendOne(queuedAt);
+          }
+        });
+      }
+      if (now >= nextReport) {
+        long total = sent.get();
+        out.println(String.format("t=%3ds sent/s=%5d client queue=%5d pending objects=%6d %s %s",
+            TimeUnit.NANOSECONDS.toSeconds(now - start), total - sentAtLastReport, clientPool.getQueue().size(),
+            firehose.getPending(), responses, queueDepths()));
+        sentAtLastReport = total;
+        nextReport += TimeUnit.SECONDS.toNanos(1);
+      }
+    }
+    clientPool.shutdown();
+    clientPool.awaitTermination(5, TimeUnit.MINUTES);
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * @return the messages per second to send at a time into the run.
+   */
+  private double currentRate(double seconds) {
+    if ("ramp".equals(shape)) {
+      return rate * Math.min(1, seconds / duration);
+    } else if ("burst".equals(shape)) {
+      return (seconds % burstPeriod) < burstPeriod / 5.0 ? rate * burstMultiplier : rate / 4.0;
+    }
+    return rate;
+  }
+
+  private void sendOne(long queuedAt) {
+    String path;
+    String body;
+    if (ThreadLocalRandom.current().nextInt(100) < saveAuthPercent) {
+      Map<String, String> token = new HashMap<String, String>();
+      String[] merchantIds = firehose.getMerchantIds();
+      token.put(merchantIds[ThreadLocalRandom.current().nextInt(merchantIds.length)], UUID.randomUUID().toString());
+      path = "/saveauth";
+      body = gson.toJson(token);
+    } else {
+      path = "/webhook";
+      body = firehose.nextMessage();
+    }
+    sent.incrementAndGet();
+    String status;
+    try {
+      int code = post(path, body);
+      status = path + " " + code;
+      if (code == 200 && path.equals("/webhook")) {
+        accepted.incrementAndGet();
+      } else if (path.equals("/webhook")) {
+        firehose.rejected(body);
+      }
+    } catch (IOException e) {
+      status = path + " " + e.getClass().getSimpleName();
+      firehose.rejected(body);
+    }
+    responseLatency.record(System.nanoTime() - queuedAt);
+    AtomicLong count = responses.get(status);
+    if (count == null) {
+      responses.putIfAbsent(status, new AtomicLong());
+      count = responses.get(status);
+    }
+    count.incrementAndGet();
+  }
+
+  /**
+   * Waits for the objects of the accepted messages to be fetched, reporting the queues as they empty.
+   */
+  private void drain() throws Exception {
+    long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(drainSeconds);
+    while (firehose.getPending() > 0 && System.nanoTime() < end) {
+      out.println(String.format("draining, pending objects=%6d %s", firehose.getPending(), queueDepths()));
+      Thread.sleep(1000);
+    }
+  }
+
+  private void report(long sendNanos) {
+    double seconds = sendNanos / 1e9;
+    out.println();
+    out.println("Sent " + sent.get() + " requests in " + String.format("%.1f", seconds) + "s, "
+        + String.format("%.1f", sent.get() / seconds) + "/s; accepted webhooks "
+        + String.format("%.1f", accepted.get() / seconds) + "/s");
+    out.println("Responses: " + responses);
+    out.println("Response latency (including client queue): " + responseLatency.summary());
+    out.println("End to end latency (sent to fetched): " + endToEndLatency.summary());
+    out.println("Objects never fetched: " + firehose.getPending());
+    out.println("Stub api calls: " + stubApi.getCalls() + ", errors: " + stubApi.getErrors());
+    out.println("Max queue depths: " + maxGauges);
+  }
+
+  /**
+   * Reads the queue depth gauges from /metrics, keeping the largest value seen of each.
+   *
+   * @return the non zero current depths.
+   */
+  private Map<String, Long> queueDepths() {
+    Map<String, Long> depths = new TreeMap<String, Long>();
+    try {
+      HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + "/metrics").openConnection();
+      String metrics = new String(readFully(connection.getInputStream()), "UTF-8");
+      for (String line : metrics.split("\n")) {
+        if (line.startsWith("#") || !(line.contains("queue_depth") || line.contains("pending"))) {
+          continue;
+        }
+        int space = line.lastIndexOf(' ');
+        String name = line.substring(0, space).replace("webhook_", "");
+        long value = Long.parseLong(line.substring(space + 1));
+        if (value > 0 && !name.contains("max_")) {
+          depths.put(name, value);
+        }
+        synchronized (maxGauges) {
+          Long max = maxGauges.get(name);
+          if (max == null || value > max) {
+            maxGauges.put(name, value);
+          }
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    return depths;
+  }
+
+  private int post(String path, String body) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+    connection.setDoOutput(true);
+    connection.setRequestMethod("POST");
+    connection.setRequestProperty("Content-Type", "application/json");
+    OutputStream out = connection.getOutputStream();
+    out.write(body.getBytes("UTF-8"));
+    out.close();
+    int code = connection.getResponseCode();
+    InputStream in = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+    if (in != null) {
+      readFully(in);
+    }
+    return code;
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    try {
+      return org.apache.commons.io.IOUtils.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+}
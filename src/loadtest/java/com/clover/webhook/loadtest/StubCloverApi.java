@@ -0,0 +1,116 @@
+package com.clover.webhook.loadtest;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local stand in for the Clover rest api, answering the /v3/... calls the DetailedWebHookMessageHandler makes
+ * with a small json object, after a configurable latency and with a configurable rate of 500 errors.
+ *
+ * Every object that is asked for is reported to the listener, so the time from sending a webhook to the fetch of
+ * its objects can be measured.
+ */
+class StubCloverApi {
+
+  interface FetchListener {
+    void fetched(String objectId);
+  }
+
+  private final Server server;
+  private final AtomicLong calls = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+
+  /**
+   * @param latencyMillis the least time a call takes
+   * @param jitterMillis up to this much more time is added at random
+   * @param errorRate the fraction of calls that fail with a 500
+   * @param listener told about every object that is asked for
+   */
+  StubCloverApi(final int latencyMillis, final int jitterMillis, final double errorRate, final FetchListener listener) {
+    server = new Server(new QueuedThreadPool(400, 16));
+    ServerConnector connector = new ServerConnector(server);
+    connector.setPort(0);
+    server.addConnector(connector);
+    server.setHandler(new AbstractHandler() {
+      public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+          throws IOException {
+        calls.incrementAndGet();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+          Thread.sleep(latencyMillis + (jitterMillis > 0 ? random.nextInt(jitterMillis + 1) : 0));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        baseRequest.setHandled(true);
+
+        String filter = request.getParameter("filter");
+        String[] ids;
+        if (filter != null && filter.startsWith("id in (") && filter.endsWith(")")) {
+          // A list call, for several objects at once.
+          ids = filter.substring("id in (".length(), filter.length() - 1).split(",");
+          for (int i = 0; i < ids.length; i++) {
+            ids[i] = ids[i].trim().replace("'", "");
+          }
+        } else {
+          String uri = URLDecoder.decode(request.getRequestURI(), "UTF-8");
+          ids = new String[]{uri.substring(uri.lastIndexOf('/') + 1)};
+        }
+        for (String id : ids) {
+          listener.fetched(id);
+        }
+
+        if (random.nextDouble() < errorRate) {
+          errors.incrementAndGet();
+          response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Stub error");
+          return;
+        }
+        response.setContentType("application/json");
+        StringBuilder body = new StringBuilder();
+        if (filter != null) {
+          body.append("{\"elements\":[");
+          for (int i = 0; i < ids.length; i++) {
+            body.append(i > 0 ? "," : "").append("{\"id\":\"").append(ids[i]).append("\"}");
+          }
+          body.append("]}");
+        } else {
+          body.append("{\"id\":\"").append(ids[0]).append("\",\"href\":\"").append(request.getRequestURI())
+              .append("\"}");
+        }
+        response.getWriter().write(body.toString());
+      }
+    });
+  }
+
+  void start() throws Exception {
+    server.start();
+  }
+
+  void stop() throws Exception {
+    server.stop();
+  }
+
+  /**
+   * @return the base url of the stub, to use as the cloverServer.
+   */
+  String getUrl() {
+    return "http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+  }
+
+  long getCalls() {
+    return calls.get();
+  }
+
+  long getErrors() {
+    return errors.get();
+  }
+}
@@ -0,0 +1,146 @@
+package com.clover.webhook.loadtest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates synthetic webhook messages for a fixed set of merchants.
+ *
+ * The object types and update types are picked at random with the configured weights, for example "O:40,P:30,I:20,C:10"
+ * and "UPDATE:80,CREATE:15,DELETE:5".  Every order, payment, item and customer update gets a new object id, and the
+ * time its message was sent is kept until the stub api reports that the object was fetched, which gives the end to
+ * end processing latency.  App and merchant updates are sent but not timed.
+ */
+class WebHookFirehose {
+
+  private final String[] merchantIds;
+  private final int updatesPerMessage;
+  private final String[] objectTypes;
+  private final String[] updateTypes;
+
+  private final AtomicLong nextObject = new AtomicLong();
+  private final AtomicLong nextTs = new AtomicLong(System.currentTimeMillis());
+  private final Map<String, Long> sentAt = new ConcurrentHashMap<String, Long>();
+
+  /**
+   * @param merchants the number of merchants to spread the updates over
+   * @param updatesPerMessage the number of updates in each message
+   * @param objectTypeMix the weights of the object types
+   * @param updateTypeMix the weights of the update types
+   */
+  WebHookFirehose(int merchants, int updatesPerMessage, String objectTypeMix, String updateTypeMix) {
+    merchantIds = new String[merchants];
+    for (int i = 0; i < merchants; i++) {
+      merchantIds[i] = merchantId(i);
+    }
+    this.updatesPerMessage = updatesPerMessage;
+    this.objectTypes = weighted(objectTypeMix);
+    this.updateTypes = weighted(updateTypeMix);
+  }
+
+  /**
+   * @return a 13 character merchant id, like the ones Clover uses.
+   */
+  static String merchantId(int index) {
+    return String.format("LOADTESTM%04d", index);
+  }
+
+  String[] getMerchantIds() {
+    return merchantIds;
+  }
+
+  /**
+   * @return the json of a new message, with its updates spread over a few random merchants.
+   */
+  String nextMessage() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    Map<String, List<String>> updatesByMerchant = new LinkedHashMap<String, List<String>>();
+    List<String> timed = new ArrayList<String>();
+    for (int i = 0; i < updatesPerMessage; i++) {
+      String merchantId = merchantIds[random.nextInt(merchantIds.length)];
+      String objectType = objectTypes[random.nextInt(objectTypes.length)];
+      String objectId;
+      if ("M".equals(objectType)) {
+        objectId = merchantId;
+      } else if ("A".equals(objectType)) {
+        objectId = "LOADTESTAPP01";
+      } else {
+        objectId = String.format("LT%011d", nextObject.getAndIncrement());
+        timed.add(objectId);
+      }
+      List<String> updates = updatesByMerchant.get(merchantId);
+      if (updates == null) {
+        updates = new ArrayList<String>();
+        updatesByMerchant.put(merchantId, updates);
+      }
+      updates.add("{\"objectId\":\"" + objectType + ":" + objectId + "\",\"type\":\""
+          + updateTypes[random.nextInt(updateTypes.length)] + "\",\"ts\":\"" + nextTs.getAndIncrement() + "\"}");
+    }
+
+    StringBuilder json = new StringBuilder("{\"appId\":\"LOADTESTAPP01\",\"merchants\":{");
+    boolean firstMerchant = true;
+    for (Map.Entry<String, List<String>> merchant : updatesByMerchant.entrySet()) {
+      json.append(firstMerchant ? "" : ",").append('"').append(merchant.getKey()).append("\":[");
+      firstMerchant = false;
+      for (int i = 0; i < merchant.getValue().size(); i++) {
+        json.append(i > 0 ? "," : "").append(merchant.getValue().get(i));
+      }
+      json.append(']');
+    }
+    json.append("}}");
+
+    long now = System.nanoTime();
+    for (String objectId : timed) {
+      sentAt.put(objectId, now);
+    }
+    return json.toString();
+  }
+
+  /**
+   * Called when an object has been fetched.
+   *
+   * @return the nanoseconds since its message was sent, or -1 if it was not timed or has already been fetched.
+   */
+  long fetched(String objectId) {
+    Long sent = sentAt.remove(objectId);
+    return sent == null ? -1 : System.nanoTime() - sent;
+  }
+
+  /**
+   * Forgets the objects of a message that was not accepted, so they are not waited for.
+   */
+  void rejected(String json) {
+    int index = 0;
+    while ((index = json.indexOf(":LT", index)) >= 0) {
+      sentAt.remove(json.substring(index + 1, index + 14));
+      index += 14;
+    }
+  }
+
+  /**
+   * @return the number of timed objects that have been sent but not fetched yet.
+   */
+  int getPending() {
+    return sentAt.size();
+  }
+
+  /**
+   * @return the names repeated in proportion to their weights, so a uniform pick from the array is weighted.
+   */
+  private static String[] weighted(String mix) {
+    List<String> names = new ArrayList<String>();
+    for (String part : mix.split(",")) {
+      String[] nameAndWeight = part.trim().split(":");
+      int weight = nameAndWeight.length > 1 ? Integer.parseInt(nameAndWeight[1].trim()) : 1;
+      for (int i = 0; i < weight; i++) {
+        names.add(nameAndWeight[0].trim());
+      }
+    }
+    return names.toArray(new String[names.size()]);
+  }
+}
@@ -0,0 +1,165 @@
+package com.clover.webhook;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The layout of a binary access token index, an open addressed hash table of merchant id to access token.
+ *
+ * The file starts with a header of MAGIC, VERSION, the number of slots (a power of two) and the number of entries,
+ * each a 4 byte int.  The slots follow, each the 13 ascii characters of a merchant id and the 16 bytes of the
+ * token UUID (most significant long first).  An empty slot starts with a zero byte.  A merchant id is found by
+ * hashing it to a slot and probing forward until its slot or an empty one is reached.
+ *
+ * Merchant ids have to be exactly 13 ascii characters, and tokens have to be UUIDs in their canonical lower case
+ * form, so that they can be stored in fixed width slots.
+ */
+class AccessTokenIndex {
+
+  static final int MAGIC = 0x43544B49; // "CTKI"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 16;
+  static final int MERCHANT_ID_LENGTH = 13;
+  static final int TOKEN_LENGTH = 16;
+  static final int SLOT_SIZE = MERCHANT_ID_LENGTH + TOKEN_LENGTH;
+
+  private AccessTokenIndex() {
+  }
+
+  /**
+   * @return true if the merchant id can be stored in the index.
+   */
+  static boolean isValidMerchantId(String merchantId) {
+    if (merchantId == null || merchantId.length() != MERCHANT_ID_LENGTH) {
+      return false;
+    }
+    for (int i = 0; i < MERCHANT_ID_LENGTH; i++) {
+      char c = merchantId.charAt(i);
+      if (c == 0 || c > 127) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the token as a UUID, or null if it would not be stored exactly.
+   */
+  static UUID toUuid(String token) {
+    try {
+      UUID uuid = UUID.fromString(token);
+      return uuid.toString().equals(token) ? uuid : null;
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * FNV-1a over the characters of a valid merchant id.
+   */
+  static int hash(String merchantId) {
+    int hash = 0x811C9DC5;
+    for (int i = 0; i < MERCHANT_ID_LENGTH; i++) {
+      hash ^= merchantId.charAt(i);
+      hash *= 0x01000193;
+    }
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * @return the number of slots for a table of the passed size, keeping it no more than half full.
+   */
+  static int slotCount(int entries) {
+    int slots = 16;
+    while (slots < entries * 2) {
+      slots <<= 1;
+      if (slots <= 0 || (long) slots * SLOT_SIZE + HEADER_SIZE > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Too many entries for an access token index: " + entries);
+      }
+    }
+    return slots;
+  }
+
+  /**
+   * Finds the slot for a merchant id.
+   *
+   * @return the offset of the slot that holds the merchant id, or of the empty slot where it would go.
+   */
+  static int findSlot(ByteBuffer buffer, int slots, String merchantId) {
+    int mask = slots - 1;
+    int slot = hash(merchantId) & mask;
+    while (true) {
+      int offset = HEADER_SIZE + slot * SLOT_SIZE;
+      if (buffer.get(offset) == 0 || matches(buffer, offset, merchantId)) {
+        return offset;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private static boolean matches(ByteBuffer buffer, int offset, String merchantId) {
+    for (int i = 0; i < MERCHANT_ID_LENGTH; i++) {
+      if (buffer.get(offset + i) != (byte) merchantId.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes an index of the passed tokens to a temporary file and renames it over the target, so that a reader
+   * never maps a partial index.  Entries that cannot be stored are skipped.
+   *
+   * @return the number of entries written.
+   */
+  static int write(Map<String, String> tokens, File file) throws IOException {
+    int slots = slotCount(tokens.size());
+    File temp = new File(file.getPath() + ".tmp");
+    int entries = 0;
+    RandomAccessFile out = new RandomAccessFile(temp, "rw");
+    try {
+      out.setLength(0);
+      FileChannel channel = out.getChannel();
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
+      for (Map.Entry<String, String> token : tokens.entrySet()) {
+        String merchantId = token.getKey();
+        UUID uuid = toUuid(token.getValue());
+        if (!isValidMerchantId(merchantId) || uuid == null) {
+          System.out.println("Skipping access token for merchant id '" + merchantId + "', it cannot be indexed");
+          continue;
+        }
+        int offset = findSlot(buffer, slots, merchantId);
+        if (buffer.get(offset) == 0) {
+          entries++;
+        }
+        for (int i = 0; i < MERCHANT_ID_LENGTH; i++) {
+          buffer.put(offset + i, (byte) merchantId.charAt(i));
+        }
+        buffer.putLong(offset + MERCHANT_ID_LENGTH, uuid.getMostSignificantBits());
+        buffer.putLong(offset + MERCHANT_ID_LENGTH + 8, uuid.getLeastSignificantBits());
+      }
+      buffer.putInt(0, MAGIC);
+      buffer.putInt(4, VERSION);
+      buffer.putInt(8, slots);
+      buffer.putInt(12, entries);
+      buffer.force();
+    } finally {
+      out.close();
+    }
+    try {
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    return entries;
+  }
+}
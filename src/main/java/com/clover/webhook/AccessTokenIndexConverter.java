@@ -0,0 +1,48 @@
+package com.clover.webhook;
+
+import com.google.gson.stream.JsonReader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Converts an access token json file (the accessTokens.json written by SaveAuth) to the binary index read by
+ * MappedAccessTokenService.
+ *
+ * Usage: java -cp ... com.clover.webhook.AccessTokenIndexConverter accessTokens.json accessTokens.idx
+ */
+public class AccessTokenIndexConverter {
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.out.println("Usage: AccessTokenIndexConverter <accessTokens.json> <index file>");
+      System.exit(1);
+    }
+    File in = new File(args[0]);
+    File out = new File(args[1]);
+    int written = convert(in, out);
+    System.out.println("Wrote " + written + " access tokens to " + out.getAbsolutePath());
+  }
+
+  /**
+   * @return the number of tokens written to the index.
+   */
+  public static int convert(File json, File index) throws IOException {
+    Map<String, String> tokens = new HashMap<String, String>();
+    JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(json), "UTF-8"));
+    try {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        tokens.put(reader.nextName(), reader.nextString());
+      }
+      reader.endObject();
+    } finally {
+      reader.close();
+    }
+    return AccessTokenIndex.write(tokens, index);
+  }
+}
@@ -1,5 +1,9 @@
 package com.clover.webhook;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * Interface that defines a single method to provide security/access tokens for rest calls based on a merchant
  *
@@ -13,4 +17,22 @@ public interface AccessTokenService {
    * @return a token that can be used in rest calls for this merchant, or null if no token could be obtained.
    */
   String getAccessToken(String merchantId);
+
+  /**
+   * Looks up the tokens of many merchants at once.  By default this asks for each merchant in turn; services that
+   * can answer a batch more cheaply should override it.
+   *
+   * @param merchantIds merchantIds
+   * @return the tokens of the merchants that have one, by merchantId.  Merchants without a token are left out.
+   */
+  default Map<String, String> getAccessTokens(Collection<String> merchantIds) {
+    Map<String, String> accessTokens = new LinkedHashMap<String, String>();
+    for (String merchantId : merchantIds) {
+      String accessToken = getAccessToken(merchantId);
+      if (accessToken != null) {
+        accessTokens.put(merchantId, accessToken);
+      }
+    }
+    return accessTokens;
+  }
 }
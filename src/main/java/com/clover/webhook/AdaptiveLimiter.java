@@ -0,0 +1,175 @@
+package com.clover.webhook;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A concurrency limit that adapts to how the server is coping, using additive increase and multiplicative decrease.
+ *
+ * Each call that succeeds raises the limit by about one for every limit's worth of calls.  A call that is throttled
+ * (429 or 503) or fails halves it, and one whose latency has grown well past the usual latency trims it, so the
+ * limit backs off before the server starts refusing calls.  The usual latency is a slow moving average of the
+ * latencies of successful calls, and the current latency a fast moving one.
+ *
+ * Acquiring never blocks: a caller over the limit is queued, and run when a call finishes and there is room.
+ */
+public class AdaptiveLimiter {
+
+  /**
+   * How a call that held a permit went.
+   */
+  public enum Outcome {
+    SUCCESS,
+    THROTTLED,
+    FAILED,
+    /**
+     * The call was not made, or its result says nothing about the server.
+     */
+    IGNORED
+  }
+
+  /**
+   * How far the current latency can be above the usual latency before the limit is trimmed.
+   */
+  private static final double LATENCY_TOLERANCE = 2.0;
+
+  private final int minLimit;
+  private final int maxLimit;
+
+  private double limit;
+  private int inFlight;
+  private double usualLatency = -1;
+  private double currentLatency = -1;
+  private long throttled;
+  private final Deque<Runnable> waiting = new ArrayDeque<Runnable>();
+  private boolean retired;
+
+  /**
+   * @param initialLimit the limit to start at
+   * @param minLimit the lowest the limit goes
+   * @param maxLimit the highest the limit goes
+   */
+  public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit) {
+    this.minLimit = Math.max(1, minLimit);
+    this.maxLimit = Math.max(this.minLimit, maxLimit);
+    this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+  }
+
+  /**
+   * Runs the task when there is room under the limit, now if there is room already.  The task must call
+   * #release once its call has finished.
+   *
+   * @return false if the limiter has been retired, in which case the task is not run.
+   */
+  public boolean acquire(Runnable task) {
+    synchronized (this) {
+      if (retired) {
+        return false;
+      }
+      if (inFlight >= (int) limit || !waiting.isEmpty()) {
+        waiting.add(task);
+        return true;
+      }
+      inFlight++;
+    }
+    task.run();
+    return true;
+  }
+
+  /**
+   * Retires the limiter if it is idle, with nothing in flight or waiting and the limit back at its max, so it holds
+   * nothing a new limiter would not.  A retired limiter refuses every acquire.
+   *
+   * @return true if the limiter is retired.
+   */
+  public synchronized boolean retireIfIdle() {
+    return retire((int) limit >= maxLimit);
+  }
+
+  /**
+   * Retires the limiter if nothing is in flight or waiting, even if its limit is still backed off.
+   *
+   * @return true if the limiter is retired.
+   */
+  public synchronized boolean retireIfUnused() {
+    return retire(true);
+  }
+
+  private boolean retire(boolean allowed) {
+    if (!retired && allowed && inFlight == 0 && waiting.isEmpty()) {
+      retired = true;
+    }
+    return retired;
+  }
+
+  /**
+   * Gives back a permit, adjusts the limit for the outcome of the call, and runs the waiting tasks there is now
+   * room for.
+   *
+   * @param latencyNanos how long the call took
+   */
+  public void release(Outcome outcome, long latencyNanos) {
+    List<Runnable> ready = new ArrayList<Runnable>();
+    synchronized (this) {
+      inFlight--;
+      adjust(outcome, latencyNanos);
+      while (!waiting.isEmpty() && inFlight < (int) limit) {
+        inFlight++;
+        ready.add(waiting.poll());
+      }
+    }
+    for (Runnable task : ready) {
+      task.run();
+    }
+  }
+
+  private void adjust(Outcome outcome, long latencyNanos) {
+    switch (outcome) {
+      case SUCCESS:
+        if (usualLatency < 0) {
+          usualLatency = currentLatency = latencyNanos;
+        } else {
+          usualLatency = usualLatency * 0.99 + latencyNanos * 0.01;
+          currentLatency = currentLatency * 0.8 + latencyNanos * 0.2;
+        }
+        if (currentLatency > usualLatency * LATENCY_TOLERANCE) {
+          limit = limit * 0.9;
+        } else {
+          limit = limit + 1 / limit;
+        }
+        break;
+      case THROTTLED:
+        throttled++;
+        limit = limit / 2;
+        break;
+      case FAILED:
+        limit = limit / 2;
+        break;
+      default:
+        break;
+    }
+    limit = Math.max(minLimit, Math.min(maxLimit, limit));
+  }
+
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  public synchronized int getWaiting() {
+    return waiting.size();
+  }
+
+  public synchronized long getThrottledCount() {
+    return throttled;
+  }
+
+  public synchronized String toString() {
+    return "AdaptiveLimiter{limit=" + (int) limit + ", inFlight=" + inFlight + ", waiting=" + waiting.size() + "}";
+  }
+}
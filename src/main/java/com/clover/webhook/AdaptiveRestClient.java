@@ -0,0 +1,310 @@
+package com.clover.webhook;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * A RestClient that wraps another, keeping the calls to each api server and to each merchant under an
+ * AdaptiveLimiter, and retrying calls that were throttled or failed.
+ *
+ * A call waits for a permit from its merchant's limiter, then from its server's limiter, so one busy merchant
+ * cannot take every call to the server.  The merchant is the path segment after "/merchants/"; calls without one
+ * are only limited by server.  A merchant's limiter is dropped once nothing is in flight or waiting for it and its
+ * limit is back at the max, so only busy or backed off merchants hold one.  When there are more than
+ * MAX_MERCHANT_LIMITERS, the backed off ones that are not in use are dropped too.
+ *
+ * A call that gets a 429 or 5xx response, or could not be made at all, is retried on a timer up to the most retries.
+ * The delay is the Retry-After of the response when it has one, otherwise a random delay of up to the base delay
+ * doubled for every retry so far (full jitter), and never more than the most delay.  The future of the call
+ * completes with the response of the last attempt.
+ */
+public class AdaptiveRestClient implements RestClient {
+
+  private static final String MERCHANTS = "/merchants/";
+
+  /**
+   * How many merchant limiters there can be before the ones that are not in use are dropped.
+   */
+  static final int MAX_MERCHANT_LIMITERS = 10000;
+
+  private final RestClient delegate;
+  private final int serverMaxLimit;
+  private final int merchantMaxLimit;
+  private final int maxRetries;
+  private final long retryBaseMillis;
+  private final long retryMaxMillis;
+
+  private final ConcurrentMap<String, AdaptiveLimiter> serverLimiters = new ConcurrentHashMap<String, AdaptiveLimiter>();
+  private final ConcurrentMap<String, AdaptiveLimiter> merchantLimiters =
+      new ConcurrentHashMap<String, AdaptiveLimiter>();
+  private final ScheduledExecutorService retryTimer;
+
+  private final Metrics.Counter retries = Metrics.counter("webhook_rest_retries_total");
+  private final Metrics.Counter retriesExhausted = Metrics.counter("webhook_rest_retries_exhausted_total");
+
+  /**
+   * @param delegate the client that makes the calls
+   * @param serverMaxLimit the highest the limit for a server goes
+   * @param merchantMaxLimit the highest the limit for a merchant goes
+   * @param maxRetries the most times a call is retried
+   * @param retryBaseMillis the delay before the first retry, doubled for each retry after it
+   * @param retryMaxMillis the longest delay before a retry, even if the Retry-After of the response asks for more
+   */
+  public AdaptiveRestClient(RestClient delegate, int serverMaxLimit, int merchantMaxLimit, int maxRetries,
+                            long retryBaseMillis, long retryMaxMillis) {
+    this.delegate = delegate;
+    this.serverMaxLimit = serverMaxLimit;
+    this.merchantMaxLimit = merchantMaxLimit;
+    this.maxRetries = maxRetries;
+    this.retryBaseMillis = retryBaseMillis;
+    this.retryMaxMillis = retryMaxMillis;
+    this.retryTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "rest-retry");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  public CompletableFuture<RestResponse> get(String restUrl) {
+    CompletableFuture<RestResponse> result = new CompletableFuture<RestResponse>();
+    URL url;
+    try {
+      url = new URL(restUrl);
+    } catch (MalformedURLException e) {
+      result.completeExceptionally(e);
+      return result;
+    }
+    String server = url.getHost() + ":" + (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+    attempt(restUrl, merchantId(url.getPath()), serverLimiter(server), 0, result);
+    return result;
+  }
+
+  public void shutdown() {
+    retryTimer.shutdownNow();
+    delegate.shutdown();
+  }
+
+  /**
+   * Makes one attempt at a call, under the merchant's limiter (looked up again for each attempt, as an idle one may
+   * have been dropped in between) and the server's.
+   *
+   * @param merchantId the merchant the call is for, or null if it is not for a merchant
+   */
+  private void attempt(final String restUrl, final String merchantId, final AdaptiveLimiter serverLimiter,
+                       final int attempt, final CompletableFuture<RestResponse> result) {
+    if (merchantId == null) {
+      serverLimiter.acquire(call(restUrl, merchantId, null, serverLimiter, attempt, result));
+      return;
+    }
+    while (true) {
+      AdaptiveLimiter merchantLimiter = merchantLimiter(merchantId);
+      final Runnable call = call(restUrl, merchantId, merchantLimiter, serverLimiter, attempt, result);
+      if (merchantLimiter.acquire(new Runnable() {
+        public void run() {
+          serverLimiter.acquire(call);
+        }
+      })) {
+        return;
+      }
+      // Retired between the lookup and the acquire, so it is on its way out of the map.
+      merchantLimiters.remove(merchantId, merchantLimiter);
+    }
+  }
+
+  private Runnable call(final String restUrl, final String merchantId, final AdaptiveLimiter merchantLimiter,
+                        final AdaptiveLimiter serverLimiter, final int attempt,
+                        final CompletableFuture<RestResponse> result) {
+    return new Runnable() {
+      public void run() {
+        final long start = System.nanoTime();
+        delegate.get(restUrl).whenComplete(new BiConsumer<RestResponse, Throwable>() {
+          public void accept(RestResponse response, Throwable failure) {
+            AdaptiveLimiter.Outcome outcome = outcome(response, failure);
+            long latency = System.nanoTime() - start;
+            serverLimiter.release(outcome, latency);
+            if (merchantLimiter != null) {
+              merchantLimiter.release(outcome, latency);
+              // Drop the limiters of merchants that are not busy, so there is not one for every merchant ever seen.
+              if (merchantLimiter.retireIfIdle()) {
+                merchantLimiters.remove(merchantId, merchantLimiter);
+              }
+            }
+            finish(restUrl, merchantId, serverLimiter, attempt, result, outcome, response, failure);
+          }
+        });
+      }
+    };
+  }
+
+  private void finish(final String restUrl, final String merchantId,
+                      final AdaptiveLimiter serverLimiter, final int attempt,
+                      final CompletableFuture<RestResponse> result, AdaptiveLimiter.Outcome outcome,
+                      RestResponse response, Throwable failure) {
+    if (outcome != AdaptiveLimiter.Outcome.SUCCESS && !result.isDone()) {
+      if (attempt < maxRetries) {
+        retries.increment();
+        try {
+          retryTimer.schedule(new Runnable() {
+            public void run() {
+              attempt(restUrl, merchantId, serverLimiter, attempt + 1, result);
+            }
+          }, retryDelayMillis(attempt, response), TimeUnit.MILLISECONDS);
+          return;
+        } catch (RejectedExecutionException e) {
+          // Shutting down, so the last response is the result.
+        }
+      } else {
+        retriesExhausted.increment();
+      }
+    }
+    if (failure != null) {
+      result.completeExceptionally(failure);
+    } else {
+      result.complete(response);
+    }
+  }
+
+  /**
+   * A 429 or 503 says the server is overloaded, and any other 5xx or a call that could not be made that it is in
+   * trouble.  Anything else, including a 404, is an answer.
+   */
+  private static AdaptiveLimiter.Outcome outcome(RestResponse response, Throwable failure) {
+    if (failure != null) {
+      return AdaptiveLimiter.Outcome.FAILED;
+    }
+    int status = response.getStatusCode();
+    if (status == 429 || status == 503) {
+      return AdaptiveLimiter.Outcome.THROTTLED;
+    }
+    if (status >= 500) {
+      return AdaptiveLimiter.Outcome.FAILED;
+    }
+    return AdaptiveLimiter.Outcome.SUCCESS;
+  }
+
+  long retryDelayMillis(int attempt, RestResponse response) {
+    long retryAfter = response == null ? -1 : parseRetryAfterMillis(response.getRetryAfter());
+    if (retryAfter >= 0) {
+      return Math.min(retryAfter, retryMaxMillis);
+    }
+    long ceiling = Math.min(retryMaxMillis, retryBaseMillis << Math.min(attempt, 30));
+    return ThreadLocalRandom.current().nextLong(ceiling + 1);
+  }
+
+  /**
+   * @return the delay a Retry-After header asks for, either a number of seconds or an http date, or -1 if there is
+   * no header or it cannot be read.
+   */
+  static long parseRetryAfterMillis(String retryAfter) {
+    if (retryAfter == null || retryAfter.trim().isEmpty()) {
+      return -1;
+    }
+    String value = retryAfter.trim();
+    try {
+      return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+    } catch (NumberFormatException e) {
+      // Not a number of seconds, so it should be a date.
+    }
+    try {
+      ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+      return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+    } catch (DateTimeParseException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * @return the merchant id in a path like /v3/merchants/{mId}/orders/{id}, or null if there is none.
+   */
+  static String merchantId(String path) {
+    int start = path.indexOf(MERCHANTS);
+    if (start < 0) {
+      return null;
+    }
+    start += MERCHANTS.length();
+    int end = path.indexOf('/', start);
+    String merchantId = end < 0 ? path.substring(start) : path.substring(start, end);
+    return merchantId.isEmpty() ? null : merchantId;
+  }
+
+  private AdaptiveLimiter serverLimiter(final String server) {
+    AdaptiveLimiter limiter = serverLimiters.get(server);
+    if (limiter == null) {
+      AdaptiveLimiter created = new AdaptiveLimiter(serverMaxLimit, 1, serverMaxLimit);
+      limiter = serverLimiters.putIfAbsent(server, created);
+      if (limiter == null) {
+        limiter = created;
+        registerGauges(server, created);
+      }
+    }
+    return limiter;
+  }
+
+  private AdaptiveLimiter merchantLimiter(String merchantId) {
+    AdaptiveLimiter limiter = merchantLimiters.get(merchantId);
+    if (limiter == null) {
+      AdaptiveLimiter created = new AdaptiveLimiter(merchantMaxLimit, 1, merchantMaxLimit);
+      limiter = merchantLimiters.putIfAbsent(merchantId, created);
+      if (limiter == null) {
+        limiter = created;
+        if (merchantLimiters.size() > MAX_MERCHANT_LIMITERS) {
+          dropUnusedMerchantLimiters();
+        }
+      }
+    }
+    return limiter;
+  }
+
+  /**
+   * Drops the merchant limiters with nothing in flight or waiting, losing how far they had backed off.
+   */
+  private void dropUnusedMerchantLimiters() {
+    for (Iterator<AdaptiveLimiter> it = merchantLimiters.values().iterator(); it.hasNext(); ) {
+      if (it.next().retireIfUnused()) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Registers gauges for a server's limiter.  There are too many merchants to do the same for theirs.
+   */
+  private static void registerGauges(String server, final AdaptiveLimiter limiter) {
+    Metrics.gauge("webhook_rest_concurrency_limit", new Metrics.Gauge() {
+      public long get() {
+        return limiter.getLimit();
+      }
+    }, "server", server);
+    Metrics.gauge("webhook_rest_in_flight", new Metrics.Gauge() {
+      public long get() {
+        return limiter.getInFlight();
+      }
+    }, "server", server);
+    Metrics.gauge("webhook_rest_waiting", new Metrics.Gauge() {
+      public long get() {
+        return limiter.getWaiting();
+      }
+    }, "server", server);
+    Metrics.gauge("webhook_rest_throttled", new Metrics.Gauge() {
+      public long get() {
+        return limiter.getThrottledCount();
+      }
+    }, "server", server);
+  }
+}
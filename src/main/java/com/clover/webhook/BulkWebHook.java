@@ -0,0 +1,243 @@
+package com.clover.webhook;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonWriter;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Accepts many webhook messages in one request, for relays and backfills that forward messages they captured.
+ *
+ * The body is newline delimited json, one WebHookMessage per line.  Lines are read, parsed and sent down the
+ * WebHook servlet's pipeline (journal, queue and handlers, see WebHook#admit) one at a time as they arrive, so the
+ * body is never held in memory.  When the queue is full, reading waits up to "bulkQueueWaitMillis" for room,
+ * which holds the sender back through the connection instead of failing the line.  If there is still no room, or
+ * a line cannot be journaled, reading stops.
+ *
+ * The response is a json summary: the number of lines read and how many were accepted, invalid (not a message),
+ * too large (over the WebHook's "maxPayloadBytes") or unavailable, the line to resume at if reading stopped early,
+ * and the line number, result and message of the lines that were not accepted, up to "bulkMaxReportedErrors" of
+ * them.  Blank lines are skipped.  For example:
+ *
+ *   {"lines":3,"accepted":2,"invalid":1,"tooLarge":0,"unavailable":0,
+ *    "errors":[{"line":2,"result":"invalid","message":"Unable to parse webhook message"}]}
+ *
+ * The WebHook servlet has to be loaded first; until it is, requests get a 503.
+ */
+public class BulkWebHook extends javax.servlet.http.HttpServlet {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final int END_OF_STREAM = -1;
+  private static final int LINE = 0;
+  private static final int LINE_TOO_LARGE = 1;
+
+  private static final Metrics.Counter ACCEPTED = Metrics.counter("webhook_bulk_lines_total", "result", "accepted");
+  private static final Metrics.Counter INVALID = Metrics.counter("webhook_bulk_lines_total", "result", "invalid");
+  private static final Metrics.Counter TOO_LARGE = Metrics.counter("webhook_bulk_lines_total", "result", "too_large");
+  private static final Metrics.Counter UNAVAILABLE =
+      Metrics.counter("webhook_bulk_lines_total", "result", "unavailable");
+
+  private Gson gson = new Gson();
+
+  /**
+   * How long to wait for room in the queue before giving up on the rest of the body.
+   */
+  private long queueWaitMillis;
+
+  /**
+   * The most failed lines that are listed in the response.
+   */
+  private int maxReportedErrors;
+
+  /**
+   * Loads the init parameters "bulkQueueWaitMillis" and "bulkMaxReportedErrors".
+   */
+  public void init(ServletConfig config) throws ServletException {
+    super.init(config);
+    queueWaitMillis = WebHook.getIntInitParameter(config, "bulkQueueWaitMillis", 30000);
+    maxReportedErrors = WebHook.getIntInitParameter(config, "bulkMaxReportedErrors", 1000);
+  }
+
+  protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+    WebHook webHook = (WebHook) getServletContext().getAttribute(WebHook.CONTEXT_ATTRIBUTE);
+    if (webHook == null) {
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The webhook servlet is not running");
+      return;
+    }
+
+    LineReader in = new LineReader(request.getInputStream());
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    long maxBytes = webHook.getMaxPayloadBytes();
+    int lineNumber = 0;
+    int lines = 0;
+    int accepted = 0;
+    int invalid = 0;
+    int tooLarge = 0;
+    int unavailable = 0;
+    int resumeAtLine = -1;
+    List<LineError> errors = new ArrayList<LineError>();
+
+    int read;
+    while ((read = in.readLine(line, maxBytes)) != END_OF_STREAM) {
+      lineNumber++;
+      if (read == LINE_TOO_LARGE) {
+        lines++;
+        tooLarge++;
+        TOO_LARGE.increment();
+        addError(errors, lineNumber, "too_large", "Message is larger than " + maxBytes + " bytes");
+        continue;
+      }
+      byte[] payload = line.toByteArray();
+      if (isBlank(payload)) {
+        continue;
+      }
+      lines++;
+      WebHookMessage webHookEvent;
+      try {
+        webHookEvent = JsonPayloads.read(gson, payload, WebHookMessage.class);
+      } catch (JsonParseException e) {
+        webHookEvent = null;
+      }
+      if (webHookEvent == null) {
+        invalid++;
+        INVALID.increment();
+        addError(errors, lineNumber, "invalid", "Unable to parse webhook message");
+        continue;
+      }
+
+      WebHook.Admission admission = webHook.admit(webHookEvent, webHook.isJournaling() ? payload : null,
+          queueWaitMillis);
+      if (admission == WebHook.Admission.ACCEPTED) {
+        accepted++;
+        ACCEPTED.increment();
+        continue;
+      }
+      // The pipeline cannot keep up, or cannot journal, so stop here and let the sender resume from this line.
+      unavailable++;
+      UNAVAILABLE.increment();
+      addError(errors, lineNumber, "unavailable", admission == WebHook.Admission.QUEUE_FULL ?
+          "Webhook queue is full" : "Unable to journal webhook message");
+      resumeAtLine = lineNumber;
+      break;
+    }
+
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    JsonWriter writer = new JsonWriter(response.getWriter());
+    writer.beginObject();
+    writer.name("lines").value(lines);
+    writer.name("accepted").value(accepted);
+    writer.name("invalid").value(invalid);
+    writer.name("tooLarge").value(tooLarge);
+    writer.name("unavailable").value(unavailable);
+    if (resumeAtLine > 0) {
+      writer.name("resumeAtLine").value(resumeAtLine);
+    }
+    writer.name("errors").beginArray();
+    for (LineError error : errors) {
+      writer.beginObject();
+      writer.name("line").value(error.line);
+      writer.name("result").value(error.result);
+      writer.name("message").value(error.message);
+      writer.endObject();
+    }
+    writer.endArray();
+    writer.endObject();
+    writer.flush();
+  }
+
+  private void addError(List<LineError> errors, int lineNumber, String result, String message) {
+    if (errors.size() < maxReportedErrors) {
+      errors.add(new LineError(lineNumber, result, message));
+    }
+  }
+
+  /**
+   * @return true if the line is empty or only whitespace, including the \r of a \r\n line ending.
+   */
+  private static boolean isBlank(byte[] line) {
+    for (byte b : line) {
+      if (b != ' ' && b != '\t' && b != '\r') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Splits a stream into lines, scanning a buffer for the line endings rather than reading a byte at a time.
+   */
+  private static class LineReader {
+    private final InputStream in;
+    private final byte[] buffer = new byte[64 * 1024];
+    private int position;
+    private int limit;
+
+    LineReader(InputStream in) {
+      this.in = in;
+    }
+
+    /**
+     * Reads the next line into the buffer, without its line ending.  A line longer than maxBytes is read to its end
+     * and dropped.
+     *
+     * @param maxBytes the longest line that is kept, or zero for no limit
+     * @return LINE, LINE_TOO_LARGE, or END_OF_STREAM if there are no more lines.
+     */
+    int readLine(ByteArrayOutputStream line, long maxBytes) throws IOException {
+      line.reset();
+      boolean tooLarge = false;
+      boolean readAny = false;
+      while (true) {
+        if (position == limit) {
+          limit = in.read(buffer);
+          position = 0;
+          if (limit <= 0) {
+            limit = 0;
+            return !readAny ? END_OF_STREAM : (tooLarge ? LINE_TOO_LARGE : LINE);
+          }
+        }
+        readAny = true;
+        int end = position;
+        while (end < limit && buffer[end] != '\n') {
+          end++;
+        }
+        if (!tooLarge) {
+          if (maxBytes > 0 && line.size() + (end - position) > maxBytes) {
+            tooLarge = true;
+            line.reset();
+          } else {
+            line.write(buffer, position, end - position);
+          }
+        }
+        if (end < limit) {
+          position = end + 1;
+          return tooLarge ? LINE_TOO_LARGE : LINE;
+        }
+        position = limit;
+      }
+    }
+  }
+
+  private static class LineError {
+    final int line;
+    final String result;
+    final String message;
+
+    LineError(int line, String result, String message) {
+      this.line = line;
+      this.result = result;
+      this.message = message;
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package com.clover.webhook;
+
+/**
+ * Fails calls fast while the service they go to is unhealthy.
+ *
+ * The breaker starts closed, letting every call through.  After a run of failures it opens, and calls are rejected
+ * without being made until the open time has passed.  Then it lets a single trial call through (half open): if the
+ * trial succeeds the breaker closes again, and if it fails the breaker opens for another open time.
+ */
+public class CircuitBreaker {
+
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final int failureThreshold;
+  private final long openMillis;
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private long openedAt;
+  private boolean trialInFlight;
+  private long timesOpened;
+  private long rejected;
+
+  /**
+   * @param failureThreshold the number of failures in a row that opens the breaker
+   * @param openMillis how long the breaker stays open before it lets a trial call through
+   */
+  public CircuitBreaker(int failureThreshold, long openMillis) {
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.openMillis = openMillis;
+  }
+
+  /**
+   * @return true if a call can be made now.  A call that is allowed must be followed by #recordSuccess or
+   * #recordFailure.
+   */
+  public synchronized boolean allowRequest() {
+    if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+      state = State.HALF_OPEN;
+      trialInFlight = false;
+    }
+    if (state == State.CLOSED || (state == State.HALF_OPEN && !trialInFlight)) {
+      trialInFlight = state == State.HALF_OPEN;
+      return true;
+    }
+    rejected++;
+    return false;
+  }
+
+  public synchronized void recordSuccess() {
+    consecutiveFailures = 0;
+    trialInFlight = false;
+    state = State.CLOSED;
+  }
+
+  public synchronized void recordFailure() {
+    consecutiveFailures++;
+    trialInFlight = false;
+    if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+      state = State.OPEN;
+      openedAt = System.currentTimeMillis();
+      timesOpened++;
+    }
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * @return the number of times the breaker has opened.
+   */
+  public synchronized long getTimesOpened() {
+    return timesOpened;
+  }
+
+  /**
+   * @return the number of calls rejected because the breaker was open.
+   */
+  public synchronized long getRejectedCount() {
+    return rejected;
+  }
+
+  public synchronized String toString() {
+    return "CircuitBreaker{state=" + state + ", consecutiveFailures=" + consecutiveFailures + "}";
+  }
+}
@@ -1,15 +1,38 @@
 package com.clover.webhook;
 
-import java.io.BufferedInputStream;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
  * Class used to handle detailed webhook information.
@@ -39,6 +62,10 @@ public class DetailedWebHookMessageHandler implements WebHookMessageHandler {
   public static final String ORDER_KEY = "orderId";
   public static final String PAYMENT_KEY = "payId";
   public static final String MERCHANT_KEY = "mId";
+  /**
+   * Replacement key for the id filter of the list calls, for example "id in (1DM6YH6WZF7QY,9KXN2PQ8V1R3T)"
+   */
+  public static final String FILTER_KEY = "filter";
 
   /*
    *REST Url templaates for the rest calls.
@@ -57,12 +84,80 @@ public class DetailedWebHookMessageHandler implements WebHookMessageHandler {
   public static final String V3_GET_MERCHANT =
       "{" + SERVER_KEY + "}/v3/merchants/{" + MERCHANT_KEY + "}?access_token={" + ACCESS_TKN_KEY + "}";
 
+  /*
+   * REST Url templates for the list calls that fetch several objects of a type at once.
+   */
+  public static final String V3_LIST_CUSTOMERS =
+      "{" + SERVER_KEY + "}/v3/merchants/{" + MERCHANT_KEY + "}/customers?filter={" + FILTER_KEY + "}&access_token={" + ACCESS_TKN_KEY + "}";
+  public static final String V3_LIST_INVENTORY_ITEMS =
+      "{" + SERVER_KEY + "}/v3/merchants/{" + MERCHANT_KEY + "}/items?filter={" + FILTER_KEY + "}&access_token={" + ACCESS_TKN_KEY + "}";
+  public static final String V3_LIST_ORDERS =
+      "{" + SERVER_KEY + "}/v3/merchants/{" + MERCHANT_KEY + "}/orders?filter={" + FILTER_KEY + "}&access_token={" + ACCESS_TKN_KEY + "}";
+  public static final String V3_LIST_PAYMENTS =
+      "{" + SERVER_KEY + "}/v3/merchants/{" + MERCHANT_KEY + "}/payments?filter={" + FILTER_KEY + "}&access_token={" + ACCESS_TKN_KEY + "}";
+
+  /**
+   * Clover list calls return at most this many elements at once.
+   */
+  public static final int MAX_LIST_SIZE = 100;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
   /**
    * Access tokens are specific to the merchant and application.  This interface supplies an access token that is
    * valid given a merchant, or else it returns null.
    */
   AccessTokenService accessTokenService;
 
+  /**
+   * The client used to make the rest calls.
+   */
+  private final RestClient restClient;
+
+  /**
+   * A cache of the objects fetched for recent updates, or null if every update is fetched.
+   */
+  private final ObjectDetailCache detailCache;
+
+  /**
+   * Runs the updates of each merchant on the stripe for the merchant, or null if every merchant is handled on the
+   * calling thread.
+   */
+  private final StripedExecutor merchantStripes;
+
+  /**
+   * The most objects of a type that are fetched with one list call, or 1 to fetch every object on its own.
+   */
+  private volatile int maxBatchSize = 1;
+
+  /**
+   * The timer that starts hedged calls, or null if calls are not hedged, see #setHedging.
+   */
+  private volatile ScheduledExecutorService hedgeTimer;
+  private volatile double hedgePercentile;
+  private volatile long hedgeMinDelayNanos;
+
+  /**
+   * A circuit breaker for the calls of each object type, or null if there are none, see #setCircuitBreakers.
+   */
+  private volatile Map<WebHookMessage.ObjectType, CircuitBreaker> circuitBreakers;
+
+  /**
+   * Calls are not hedged until there are this many latencies to estimate the hedge delay from.
+   */
+  private static final int HEDGE_MIN_SAMPLES = 100;
+
+  /**
+   * Orders updates by their timestamp, updates without a usable one keep their place relative to each other.
+   */
+  private static final Comparator<WebHookMessage.Update> BY_TS = new Comparator<WebHookMessage.Update>() {
+    public int compare(WebHookMessage.Update a, WebHookMessage.Update b) {
+      long tsA = a.getTimestamp();
+      long tsB = b.getTimestamp();
+      return tsA < tsB ? -1 : (tsA == tsB ? 0 : 1);
+    }
+  };
+
   /**
    * A mapping of the object types to the rest url templates
    */
@@ -73,6 +168,11 @@ public class DetailedWebHookMessageHandler implements WebHookMessageHandler {
    */
   private static Map<WebHookMessage.ObjectType, String> objectTypeKeys =
       new HashMap<WebHookMessage.ObjectType, String>();
+  /**
+   * A mapping of the object types that have a list call to its rest url template.
+   */
+  private static Map<WebHookMessage.ObjectType, String> listUrlTemplates =
+      new HashMap<WebHookMessage.ObjectType, String>();
 
   /*
   Populate the static mappings.
@@ -91,23 +191,62 @@ public class DetailedWebHookMessageHandler implements WebHookMessageHandler {
     objectTypeKeys.put(WebHookMessage.ObjectType.O, ORDER_KEY);
     objectTypeKeys.put(WebHookMessage.ObjectType.P, PAYMENT_KEY);
     objectTypeKeys.put(WebHookMessage.ObjectType.M, MERCHANT_KEY);
+
+    listUrlTemplates.put(WebHookMessage.ObjectType.C, V3_LIST_CUSTOMERS);
+    listUrlTemplates.put(WebHookMessage.ObjectType.I, V3_LIST_INVENTORY_ITEMS);
+    listUrlTemplates.put(WebHookMessage.ObjectType.O, V3_LIST_ORDERS);
+    listUrlTemplates.put(WebHookMessage.ObjectType.P, V3_LIST_PAYMENTS);
   }
 
   /**
-   * A template map of variables used in replacements.  This contains the server variable, and
-   * is the basis for a copied map that will have added variables based on what is contained in an event.
+   * The rest url templates, compiled with the server for this handler.  The arguments for each template are the
+   * merchant id, the object id and the access token.
    */
-  private Map<String, String> templateVariableMap = new HashMap<String, String>();
-
+  private final Map<WebHookMessage.ObjectType, UrlTemplate> compiledTemplates =
+      new EnumMap<WebHookMessage.ObjectType, UrlTemplate>(WebHookMessage.ObjectType.class);
   /**
-   * The format of the 'objectId' in the update message is <Key For Event Type>:<Event Object ID>,
-   * these are indexes appropriately named, that are used when the value is split into two pieces.
-   * The first piece is the object type, and corresponds to the com.clover.webhook.WebHookMessage.ObjectType enum.
-   * The second will be the actual objectId.
-   * @link https://docs.clover.com/build/web-apps/webhooks/?region=dev1
+   * The list url templates, compiled with the server for this handler.  The arguments are the merchant id, the id
+   * filter and the access token.
    */
-  private int OBJECT_TYPE = 0;
-  private int OBJECT_ID = 1;
+  private final Map<WebHookMessage.ObjectType, UrlTemplate> compiledListTemplates =
+      new EnumMap<WebHookMessage.ObjectType, UrlTemplate>(WebHookMessage.ObjectType.class);
+
+  /*
+   * Metrics for the steps of handling an update, see Metrics.  The ones by object type are looked up once here.
+   */
+  private static final Metrics.Histogram ACCESS_TOKEN_LOOKUP = Metrics.histogram("webhook_access_token_lookup_seconds");
+  private static final Metrics.Counter NO_ACCESS_TOKEN = Metrics.counter("webhook_no_access_token_total");
+  private static final Map<WebHookMessage.ObjectType, Metrics.Histogram> urlBuildTimes =
+      new EnumMap<WebHookMessage.ObjectType, Metrics.Histogram>(WebHookMessage.ObjectType.class);
+  private static final Map<WebHookMessage.ObjectType, Metrics.Histogram> restCallTimes =
+      new EnumMap<WebHookMessage.ObjectType, Metrics.Histogram>(WebHookMessage.ObjectType.class);
+  private static final Map<WebHookMessage.ObjectType, ConcurrentMap<String, Metrics.Counter>> restResponses =
+      new EnumMap<WebHookMessage.ObjectType, ConcurrentMap<String, Metrics.Counter>>(WebHookMessage.ObjectType.class);
+  /*
+   * The latency of the first attempt of each call, which is what the hedge delay is estimated from, the hedged calls
+   * started and the ones whose response was used, and the calls rejected by an open circuit breaker.
+   */
+  private static final Map<WebHookMessage.ObjectType, Metrics.Histogram> firstAttemptTimes =
+      new EnumMap<WebHookMessage.ObjectType, Metrics.Histogram>(WebHookMessage.ObjectType.class);
+  private static final Map<WebHookMessage.ObjectType, Metrics.Counter> hedgesStarted =
+      new EnumMap<WebHookMessage.ObjectType, Metrics.Counter>(WebHookMessage.ObjectType.class);
+  private static final Map<WebHookMessage.ObjectType, Metrics.Counter> hedgesWon =
+      new EnumMap<WebHookMessage.ObjectType, Metrics.Counter>(WebHookMessage.ObjectType.class);
+  private static final Map<WebHookMessage.ObjectType, Metrics.Counter> circuitRejections =
+      new EnumMap<WebHookMessage.ObjectType, Metrics.Counter>(WebHookMessage.ObjectType.class);
+
+  static {
+    for (WebHookMessage.ObjectType objectType : WebHookMessage.ObjectType.values()) {
+      String type = objectType.name();
+      urlBuildTimes.put(objectType, Metrics.histogram("webhook_url_build_seconds", "object_type", type));
+      restCallTimes.put(objectType, Metrics.histogram("webhook_rest_call_seconds", "object_type", type));
+      restResponses.put(objectType, new ConcurrentHashMap<String, Metrics.Counter>());
+      firstAttemptTimes.put(objectType, Metrics.histogram("webhook_rest_first_attempt_seconds", "object_type", type));
+      hedgesStarted.put(objectType, Metrics.counter("webhook_rest_hedges_total", "object_type", type));
+      hedgesWon.put(objectType, Metrics.counter("webhook_rest_hedge_wins_total", "object_type", type));
+      circuitRejections.put(objectType, Metrics.counter("webhook_circuit_rejected_total", "object_type", type));
+    }
+  }
 
   /**
    * Creates the webhook handler for dealing with webhook messages.
@@ -116,117 +255,689 @@ public class DetailedWebHookMessageHandler implements WebHookMessageHandler {
    * @param accessTokenService the service used to look up security tokens by merchantId.
    */
   public DetailedWebHookMessageHandler(String server, AccessTokenService accessTokenService) {
+    this(server, accessTokenService, new PooledRestClient(16, 8));
+  }
+
+  /**
+   * Creates the webhook handler for dealing with webhook messages.
+   *
+   * @param server the string that represents the base server for rest calls - https://apidev1.dev.clover.com:443
+   * @param accessTokenService the service used to look up security tokens by merchantId.
+   * @param restClient the client used to make the rest calls.
+   */
+  public DetailedWebHookMessageHandler(String server, AccessTokenService accessTokenService, RestClient restClient) {
+    this(server, accessTokenService, restClient, null);
+  }
+
+  /**
+   * Creates the webhook handler for dealing with webhook messages.
+   *
+   * @param server the string that represents the base server for rest calls - https://apidev1.dev.clover.com:443
+   * @param accessTokenService the service used to look up security tokens by merchantId.
+   * @param restClient the client used to make the rest calls.
+   * @param detailCache a cache of fetched objects, or null to fetch the object for every update.
+   */
+  public DetailedWebHookMessageHandler(String server, AccessTokenService accessTokenService, RestClient restClient,
+                                       ObjectDetailCache detailCache) {
+    this(server, accessTokenService, restClient, detailCache, null);
+  }
+
+  /**
+   * Creates the webhook handler for dealing with webhook messages.
+   *
+   * @param server the string that represents the base server for rest calls - https://apidev1.dev.clover.com:443
+   * @param accessTokenService the service used to look up security tokens by merchantId.
+   * @param restClient the client used to make the rest calls.
+   * @param detailCache a cache of fetched objects, or null to fetch the object for every update.
+   * @param merchantStripes the executor that the updates of each merchant are run on, keyed by merchant id, or null
+   *                        to handle every merchant on the calling thread.
+   */
+  public DetailedWebHookMessageHandler(String server, AccessTokenService accessTokenService, RestClient restClient,
+                                       ObjectDetailCache detailCache, StripedExecutor merchantStripes) {
     this.accessTokenService = accessTokenService;
-    templateVariableMap.put(SERVER_KEY, server);// ex - https://apidev1.dev.clover.com:443
+    this.restClient = restClient;
+    this.detailCache = detailCache;
+    this.merchantStripes = merchantStripes;
+
+    Map<String, String> constants = new HashMap<String, String>();
+    constants.put(SERVER_KEY, server);// ex - https://apidev1.dev.clover.com:443
+    for (Map.Entry<WebHookMessage.ObjectType, String> urlTemplate : urlTemplates.entrySet()) {
+      // The object id is named after the merchant id, so for merchant updates it is the one that is used.
+      compiledTemplates.put(urlTemplate.getKey(), UrlTemplate.compile(urlTemplate.getValue(), constants,
+          MERCHANT_KEY, objectTypeKeys.get(urlTemplate.getKey()), ACCESS_TKN_KEY));
+    }
+    for (Map.Entry<WebHookMessage.ObjectType, String> urlTemplate : listUrlTemplates.entrySet()) {
+      compiledListTemplates.put(urlTemplate.getKey(), UrlTemplate.compile(urlTemplate.getValue(), constants,
+          MERCHANT_KEY, FILTER_KEY, ACCESS_TKN_KEY));
+    }
+  }
+
+  /**
+   * Sets the most objects of one type that are fetched with a single list call.  Customers, items, orders and
+   * payments of a merchant in the same message are fetched together, in batches of up to this size; apps and merchants
+   * are always fetched one at a time.  1, the default, fetches every object on its own.
+   *
+   * @param maxBatchSize the batch size, which is capped at MAX_LIST_SIZE
+   */
+  public void setMaxBatchSize(int maxBatchSize) {
+    this.maxBatchSize = Math.max(1, Math.min(MAX_LIST_SIZE, maxBatchSize));
+  }
+
+  public int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  /**
+   * Hedges the rest calls: a call that has not finished after the percentile of the latencies of earlier calls of
+   * its object type is made a second time, and whichever answers first is used.  A throttled or failed answer
+   * waits for the other call.  Calls are only hedged once there are enough latencies to estimate the percentile.
+   *
+   * @param timer the timer the second calls are started on, or null to stop hedging
+   * @param percentile the percentile as a fraction, for example 0.95 to hedge the slowest 5% of calls
+   * @param minDelayMillis the shortest delay before a second call, however fast the calls are
+   */
+  public void setHedging(ScheduledExecutorService timer, double percentile, long minDelayMillis) {
+    this.hedgePercentile = percentile;
+    this.hedgeMinDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+    this.hedgeTimer = timer;
+  }
+
+  /**
+   * Gives the calls of each object type a circuit breaker, so that while the calls of a type keep failing, its
+   * calls fail at once instead of waiting on the api.  A 429 or 5xx response, or a call that could not be made,
+   * counts as a failure.
+   *
+   * @param failureThreshold the number of failures in a row that opens a breaker, or zero for no breakers
+   * @param openMillis how long a breaker stays open before it lets a trial call through
+   */
+  public void setCircuitBreakers(int failureThreshold, long openMillis) {
+    if (failureThreshold <= 0) {
+      circuitBreakers = null;
+      return;
+    }
+    Map<WebHookMessage.ObjectType, CircuitBreaker> breakers =
+        new EnumMap<WebHookMessage.ObjectType, CircuitBreaker>(WebHookMessage.ObjectType.class);
+    for (WebHookMessage.ObjectType objectType : WebHookMessage.ObjectType.values()) {
+      final CircuitBreaker breaker = new CircuitBreaker(failureThreshold, openMillis);
+      breakers.put(objectType, breaker);
+      Metrics.gauge("webhook_circuit_open", new Metrics.Gauge() {
+        public long get() {
+          return breaker.getState() == CircuitBreaker.State.CLOSED ? 0 : 1;
+        }
+      }, "object_type", objectType.name());
+    }
+    circuitBreakers = breakers;
+  }
+
+  /**
+   * @return the circuit breaker for the calls of an object type, or null if there are no breakers.
+   */
+  CircuitBreaker getCircuitBreaker(WebHookMessage.ObjectType objectType) {
+    Map<WebHookMessage.ObjectType, CircuitBreaker> breakers = circuitBreakers;
+    return breakers == null ? null : breakers.get(objectType);
   }
 
 
+  /**
+   * Only updates of the object types there are rest calls for are wanted, so messages with nothing else, like
+   * verification codes, never reach this handler.
+   */
+  public Subscription getSubscription() {
+    return Subscription.to(urlTemplates.keySet());
+  }
+
   /**
    * Handles the webhook message.  This just displays detailed messages about the event,
    * using rest calls.
    *
+   * The updates of each merchant are handled in the order of their timestamps.  The rest calls for them are started
+   * at once, and the detailed data is handled in that order as the calls finish.  If there is a detail cache,
+   * objects already fetched for an update at least as new are not fetched again.  With a batch size above one,
+   * the objects of a type with a list call are fetched together, see #setMaxBatchSize.
+   *
+   * Without merchant stripes all of the merchants in the message are handled on the calling thread.  With them,
+   * each merchant is handled on its stripe, so different merchants run in parallel while the updates of one
+   * merchant, from this and any other message, run one at a time in the order they arrived.  Either way this
+   * returns when every update has been handled.
+   *
+   * The access tokens of all of the merchants are looked up with one call to AccessTokenService#getAccessTokens.
+   * Merchants without a token are skipped and counted; reporting them is left to the service, see
+   * NegativeCachingAccessTokenService, which reports each one once rather than for every delivery.
+   *
+   * Updates that could not be handled, for want of a token or because their rest call failed, are marked as failed,
+   * see WebHookMessage.Update#markFailed.
+   *
    * @param webHookEvent
    */
   public void handleEvent(WebHookMessage webHookEvent) {
     // Iterate across merchants
     Map<String, List<WebHookMessage.Update>> merchants = webHookEvent.getMerchants();
-    if (merchants != null) {
-      Iterator<String> merchantIds = merchants.keySet().iterator();
-
-      while (merchantIds.hasNext()) {
-        // Make a copy of the template variable map so we can add to it without mucking with the template.
-        Map<String, String> variableMap = new HashMap<String, String>(templateVariableMap);
-        // Grab the merchantId
-        String merchantId = merchantIds.next();
-
-        // Try to get a access token for this merchant.  If we cannot get it, then we will not be able to make
-        // rest calls
-        String accessToken = accessTokenService.getAccessToken(merchantId);
-        if (null != accessToken) {
-          // Put the Access Token into the map for later replacement
-          variableMap.put(ACCESS_TKN_KEY, accessToken);
-
-          variableMap.put(MERCHANT_KEY, merchantId);
-          // Get the merchant collection of updates
-          List<WebHookMessage.Update> updates = webHookEvent.getMerchants().get(merchantId);
-          for (int updateIndex = 0; updateIndex < updates.size(); updateIndex++) {
-            WebHookMessage.Update update = updates.get(updateIndex);
-            // Split the object spec int othe object type and the object id
-            String[] objectSpec = update.getObjectId().split(":");
-            // Get the type of the object
-            WebHookMessage.ObjectType objectType = WebHookMessage.ObjectType.valueOf(objectSpec[OBJECT_TYPE]);
-            // Get the object id
-            String objectId = objectSpec[OBJECT_ID];
-            // Get the replacement key for the object type and put it into the map
-            String objectTypeKey = objectTypeKeys.get(objectType);
-            // Put the object id int othe replacement map
-            variableMap.put(objectTypeKey, objectId);
-            // Grab the correct rest url based on the object type
-            String urlTemplate = urlTemplates.get(objectType);
-            if (null != urlTemplate) {
-              // If we have the replacement url (we should), use the replacement map to set the values on it
-              // and generate a concrete populated url.
-              String restUrl = setVariables(urlTemplate, variableMap);
-              // Call the rest service.
-              try {
-                String detailedData = callRest(restUrl);
-                handleDetailedData(detailedData);
-              } catch (IOException e) {
-                e.printStackTrace();
-              }
-            }
+    if (merchants == null) {
+      return;
+    }
+
+    // Try to get the access tokens for the merchants, in one batch.  We will not be able to make rest calls for a
+    // merchant without one.
+    long lookupStart = System.nanoTime();
+    final Map<String, String> accessTokens = accessTokenService.getAccessTokens(merchants.keySet());
+    ACCESS_TOKEN_LOOKUP.recordSince(lookupStart);
+    NO_ACCESS_TOKEN.add(merchants.size() - accessTokens.size());
+
+    if (merchantStripes == null) {
+      List<CompletableFuture<RestResponse>> calls = new ArrayList<CompletableFuture<RestResponse>>();
+      List<WebHookMessage.Update> callUpdates = new ArrayList<WebHookMessage.Update>();
+      for (Map.Entry<String, List<WebHookMessage.Update>> merchant : merchants.entrySet()) {
+        startCalls(merchant.getKey(), accessTokens.get(merchant.getKey()), merchant.getValue(), calls, callUpdates);
+      }
+      handleResponses(calls, callUpdates);
+      return;
+    }
+
+    List<Future<?>> merchantTasks = new ArrayList<Future<?>>();
+    List<List<WebHookMessage.Update>> taskUpdates = new ArrayList<List<WebHookMessage.Update>>();
+    for (final Map.Entry<String, List<WebHookMessage.Update>> merchant : merchants.entrySet()) {
+      if (!accessTokens.containsKey(merchant.getKey())) {
+        markFailed(merchant.getValue());
+        continue;
+      }
+      taskUpdates.add(merchant.getValue());
+      merchantTasks.add(merchantStripes.submit(merchant.getKey(), new Runnable() {
+        public void run() {
+          List<CompletableFuture<RestResponse>> calls = new ArrayList<CompletableFuture<RestResponse>>();
+          List<WebHookMessage.Update> callUpdates = new ArrayList<WebHookMessage.Update>();
+          startCalls(merchant.getKey(), accessTokens.get(merchant.getKey()), merchant.getValue(), calls, callUpdates);
+          handleResponses(calls, callUpdates);
+        }
+      }));
+    }
+    for (int i = 0; i < merchantTasks.size(); i++) {
+      try {
+        merchantTasks.get(i).get();
+      } catch (ExecutionException e) {
+        markFailed(taskUpdates.get(i));
+        e.getCause().printStackTrace();
+      } catch (InterruptedException e) {
+        // The handler has been cancelled, give up on the merchants that are not finished.
+        for (int pending = i; pending < merchantTasks.size(); pending++) {
+          merchantTasks.get(pending).cancel(true);
+          markFailed(taskUpdates.get(pending));
+        }
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Starts the rest calls for the updates of a merchant, in the order of the update timestamps.
+   *
+   * @param accessToken the merchant's access token, or null if it has none, in which case no calls are made and the
+   *                    updates are marked as failed
+   * @param calls the list the calls are added to
+   * @param callUpdates the list the update of each call is added to
+   */
+  private void startCalls(String merchantId, String accessToken, List<WebHookMessage.Update> updates,
+                          List<CompletableFuture<RestResponse>> calls, List<WebHookMessage.Update> callUpdates) {
+    if (null == accessToken) {
+      markFailed(updates);
+      return;
+    }
+    if (updates == null) {
+      return;
+    }
+    List<WebHookMessage.Update> ordered = new ArrayList<WebHookMessage.Update>(updates);
+    Collections.sort(ordered, BY_TS);
+    int batchSize = maxBatchSize;
+    Map<WebHookMessage.ObjectType, List<BatchedFetch>> batches = batchSize > 1 ?
+        new EnumMap<WebHookMessage.ObjectType, List<BatchedFetch>>(WebHookMessage.ObjectType.class) : null;
+    for (WebHookMessage.Update update : ordered) {
+      // The object type and the object id were split out of the objectId when the message was read.
+      WebHookMessage.ObjectType objectType = update.getObjectType();
+      String objectId = update.getEventObjectId();
+      if (null == objectType) {
+        System.out.println("Skipping update with an unknown object type: " + update.getObjectId());
+        continue;
+      }
+      // Grab the correct rest url based on the object type
+      UrlTemplate urlTemplate = compiledTemplates.get(objectType);
+      if (null == urlTemplate) {
+        continue;
+      }
+      if (batches == null || !compiledListTemplates.containsKey(objectType)) {
+        calls.add(fetchDetail(merchantId, objectType, objectId, update, urlTemplate, accessToken));
+        callUpdates.add(update);
+        continue;
+      }
+
+      // Queue the object for a list call, unless the cache already has it.
+      long ts = detailCache == null ? -1 : update.getTimestamp();
+      RestResponse cached = cachedDetail(merchantId, objectType, objectId, update, ts);
+      if (cached != null) {
+        calls.add(CompletableFuture.completedFuture(cached));
+        callUpdates.add(update);
+        continue;
+      }
+      List<BatchedFetch> batch = batches.get(objectType);
+      if (batch == null) {
+        batch = new ArrayList<BatchedFetch>();
+        batches.put(objectType, batch);
+      }
+      BatchedFetch fetch = new BatchedFetch(objectId);
+      cacheWhenFetched(fetch.response, merchantId, objectType, objectId, update, ts);
+      batch.add(fetch);
+      calls.add(fetch.response);
+      callUpdates.add(update);
+      if (batch.size() >= batchSize) {
+        fetchBatch(merchantId, objectType, batch, accessToken);
+        batches.remove(objectType);
+      }
+    }
+    if (batches != null) {
+      for (Map.Entry<WebHookMessage.ObjectType, List<BatchedFetch>> batch : batches.entrySet()) {
+        fetchBatch(merchantId, batch.getKey(), batch.getValue(), accessToken);
+      }
+    }
+  }
+
+  /**
+   * Waits for the calls in order and handles the detailed data of the successful ones.  The ones behind the slowest
+   * will already be done.  If the thread is interrupted the calls that are left are cancelled.
+   *
+   * The update of a call that fails, is throttled, gets a server error or is cancelled is marked as failed, so it is
+   * handled again if the message is redelivered.
+   *
+   * @param callUpdates the update of each call
+   */
+  private void handleResponses(List<CompletableFuture<RestResponse>> calls, List<WebHookMessage.Update> callUpdates) {
+    for (int i = 0; i < calls.size(); i++) {
+      CompletableFuture<RestResponse> call = calls.get(i);
+      try {
+        RestResponse response = call.get();
+        System.out.println("Response Code: " + response.getStatusCode());
+        if (response.getStatusCode() == 429 || response.getStatusCode() >= 500) {
+          callUpdates.get(i).markFailed();
+        }
+        if (response.isSuccessful()) {
+          InputStream detailedData = response.getBodyStream();
+          try {
+            handleDetailedData(detailedData);
+          } finally {
+            detailedData.close();
           }
-        } else {
-          System.out.println("No access token found for merchant id = " + merchantId);
+        }
+      } catch (ExecutionException e) {
+        callUpdates.get(i).markFailed();
+        e.getCause().printStackTrace();
+      } catch (IOException e) {
+        callUpdates.get(i).markFailed();
+        e.printStackTrace();
+      } catch (InterruptedException e) {
+        // The handler has been cancelled, give up on the rest of the calls.
+        for (int pending = i; pending < calls.size(); pending++) {
+          calls.get(pending).cancel(true);
+          callUpdates.get(pending).markFailed();
+        }
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private static void markFailed(List<WebHookMessage.Update> updates) {
+    if (updates != null) {
+      for (WebHookMessage.Update update : updates) {
+        if (update != null) {
+          update.markFailed();
         }
       }
     }
   }
 
   /**
-   * Do something with the detailed data retrieved from the rest service.
-   * @param detailedData
+   * Gets the object for an update, from the detail cache if it has a copy as new as the update, otherwise from the
+   * rest service.  Deletes drop the object from the cache, creates and updates store what is fetched.
    */
-  protected void handleDetailedData(String detailedData) {
-    System.out.println("    detailed data for the object: '" + detailedData + "'");
+  private CompletableFuture<RestResponse> fetchDetail(final String merchantId, final WebHookMessage.ObjectType objectType,
+                                                      final String objectId, WebHookMessage.Update update,
+                                                      UrlTemplate urlTemplate, String accessToken) {
+    final long ts = detailCache == null ? -1 : update.getTimestamp();
+    RestResponse cached = cachedDetail(merchantId, objectType, objectId, update, ts);
+    if (cached != null) {
+      return CompletableFuture.completedFuture(cached);
+    }
+
+    // Fill in the ids and the token to generate a concrete populated url, and start the call to the rest service.
+    long buildStart = System.nanoTime();
+    String restUrl = urlTemplate.expand(merchantId, objectId, accessToken);
+    urlBuildTimes.get(objectType).recordSince(buildStart);
+    CompletableFuture<RestResponse> call = timedCall(objectType, restUrl);
+    cacheWhenFetched(call, merchantId, objectType, objectId, update, ts);
+    return call;
   }
 
   /**
-   * Replaces values in the template string using the values from the passed map.
-   * The keys are wrapped with braces {}, and then the value that corresponds to the
-   * key is used in the replacement.
+   * Fetches a batch of objects of one type with a list call, completing the response of each fetch with its own
+   * element of the list.  An object that is not in the list gets a 404, and if the list call fails every object
+   * gets its response.  A batch of one is fetched with the single object call.
+   */
+  private void fetchBatch(String merchantId, final WebHookMessage.ObjectType objectType, final List<BatchedFetch> batch,
+                          String accessToken) {
+    if (batch.size() == 1) {
+      BatchedFetch fetch = batch.get(0);
+      long buildStart = System.nanoTime();
+      String restUrl = compiledTemplates.get(objectType).expand(merchantId, fetch.objectId, accessToken);
+      urlBuildTimes.get(objectType).recordSince(buildStart);
+      forward(timedCall(objectType, restUrl), batch);
+      return;
+    }
+
+    Set<String> objectIds = new LinkedHashSet<String>();
+    for (BatchedFetch fetch : batch) {
+      objectIds.add(fetch.objectId);
+    }
+    long buildStart = System.nanoTime();
+    StringBuilder filter = new StringBuilder("id in (");
+    for (String objectId : objectIds) {
+      if (filter.length() > "id in (".length()) {
+        filter.append(',');
+      }
+      filter.append(objectId);
+    }
+    filter.append(')');
+    String restUrl = compiledListTemplates.get(objectType).expand(merchantId, filter.toString(), accessToken);
+    urlBuildTimes.get(objectType).recordSince(buildStart);
+
+    timedCall(objectType, restUrl).whenComplete(new BiConsumer<RestResponse, Throwable>() {
+      public void accept(RestResponse response, Throwable failure) {
+        if (failure != null || !response.isSuccessful()) {
+          complete(batch, response, failure);
+          return;
+        }
+        Map<String, RestResponse> elements;
+        try {
+          elements = splitElements(response);
+        } catch (RuntimeException e) {
+          // Not the list we asked for.
+          complete(batch, null, e);
+          return;
+        }
+        for (BatchedFetch fetch : batch) {
+          RestResponse element = elements.get(fetch.objectId);
+          fetch.response.complete(element != null ? element : new RestResponse(404, null, new byte[0]));
+        }
+      }
+    });
+  }
+
+  /**
+   * Completes the responses of every fetch in the batch with the result of a call.
+   */
+  private static void forward(CompletableFuture<RestResponse> call, final List<BatchedFetch> batch) {
+    call.whenComplete(new BiConsumer<RestResponse, Throwable>() {
+      public void accept(RestResponse response, Throwable failure) {
+        complete(batch, response, failure);
+      }
+    });
+  }
+
+  private static void complete(List<BatchedFetch> batch, RestResponse response, Throwable failure) {
+    for (BatchedFetch fetch : batch) {
+      if (failure != null) {
+        fetch.response.completeExceptionally(failure);
+      } else {
+        fetch.response.complete(response);
+      }
+    }
+  }
+
+  /**
+   * Splits the response of a list call, {"elements": [...]}, into a response for each element, by its id.
+   */
+  private static Map<String, RestResponse> splitElements(RestResponse listResponse) {
+    Map<String, RestResponse> elements = new HashMap<String, RestResponse>();
+    JsonElement list;
+    try {
+      Reader body = new InputStreamReader(listResponse.getBodyStream(), UTF_8);
+      try {
+        list = new JsonParser().parse(body);
+      } finally {
+        body.close();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    if (!list.isJsonObject() || !list.getAsJsonObject().has("elements")) {
+      throw new JsonParseException("No elements in the list response");
+    }
+    JsonArray array = list.getAsJsonObject().getAsJsonArray("elements");
+    for (JsonElement element : array) {
+      if (element.isJsonObject()) {
+        JsonObject object = element.getAsJsonObject();
+        if (object.has("id")) {
+          elements.put(object.get("id").getAsString(),
+              new RestResponse(listResponse.getStatusCode(), null, object.toString().getBytes(UTF_8)));
+        }
+      }
+    }
+    return elements;
+  }
+
+  /**
+   * Looks an object up in the detail cache.  A delete drops the object from the cache instead.
    *
-   * @param template a template string that has some number of replacement variables denoted by braces
-   * @param variableMap a map of keys to values.
-   * @return a new string with the replacements made
+   * @param ts the timestamp of the update, or -1 if it has none
+   * @return the cached response, or null if the object has to be fetched.
    */
-  private String setVariables(String template, Map<String, String> variableMap) {
-    Set<String> keys = variableMap.keySet();
-    for (String key : keys) {
-      String bracedKey = "\\{" + key + "\\}";
+  private RestResponse cachedDetail(String merchantId, WebHookMessage.ObjectType objectType, String objectId,
+                                    WebHookMessage.Update update, long ts) {
+    if (detailCache == null) {
+      return null;
+    }
+    if (update.getType() == WebHookMessage.UpdateType.DELETE) {
+      detailCache.invalidate(merchantId, objectType, objectId);
+    } else if (ts >= 0) {
+      return detailCache.get(merchantId, objectType, objectId, ts);
+    }
+    return null;
+  }
 
-      template = template.replaceAll(bracedKey, variableMap.get(key));
+  /**
+   * Stores the object in the detail cache when it has been fetched, unless it was for a delete.
+   */
+  private void cacheWhenFetched(CompletableFuture<RestResponse> call, final String merchantId,
+                                final WebHookMessage.ObjectType objectType, final String objectId,
+                                WebHookMessage.Update update, final long ts) {
+    if (ts >= 0 && update.getType() != WebHookMessage.UpdateType.DELETE) {
+      call.thenAccept(new Consumer<RestResponse>() {
+        public void accept(RestResponse response) {
+          if (response.isSuccessful()) {
+            detailCache.put(merchantId, objectType, objectId, ts, response);
+          }
+        }
+      });
     }
-    return template;
   }
 
   /**
-   * Calls a rest service with the "GET" method and an ACCEPT header of application/json
+   * Starts a rest call, hedged if hedging is on, recording how long it takes and its status.  If the circuit breaker
+   * for the object type is open the call is not made, and fails at once.
+   */
+  private CompletableFuture<RestResponse> timedCall(final WebHookMessage.ObjectType objectType, String restUrl) {
+    final CircuitBreaker breaker = getCircuitBreaker(objectType);
+    if (breaker != null && !breaker.allowRequest()) {
+      circuitRejections.get(objectType).increment();
+      CompletableFuture<RestResponse> rejected = new CompletableFuture<RestResponse>();
+      rejected.completeExceptionally(new IOException("The circuit for " + objectType + " calls is open"));
+      return rejected;
+    }
+
+    final long callStart = System.nanoTime();
+    CompletableFuture<RestResponse> call = hedgedCall(objectType, restUrl);
+    call.whenComplete(new BiConsumer<RestResponse, Throwable>() {
+      public void accept(RestResponse response, Throwable failure) {
+        restCallTimes.get(objectType).recordSince(callStart);
+        countResponse(objectType, response == null ? "error" : Integer.toString(response.getStatusCode()));
+        if (breaker != null) {
+          if (isUsable(response, failure)) {
+            breaker.recordSuccess();
+          } else {
+            breaker.recordFailure();
+          }
+        }
+      }
+    });
+    return call;
+  }
+
+  /**
+   * Starts a rest call, and if hedging is on and it is still running after the hedge delay, starts it again.  The
+   * result is the first usable response, or the last response if neither is usable.
+   */
+  private CompletableFuture<RestResponse> hedgedCall(final WebHookMessage.ObjectType objectType,
+                                                     final String restUrl) {
+    final long callStart = System.nanoTime();
+    CompletableFuture<RestResponse> first = callRest(restUrl);
+    first.whenComplete(new BiConsumer<RestResponse, Throwable>() {
+      public void accept(RestResponse response, Throwable failure) {
+        firstAttemptTimes.get(objectType).recordSince(callStart);
+      }
+    });
+    ScheduledExecutorService timer = hedgeTimer;
+    long delayNanos = timer == null ? -1 : hedgeDelayNanos(objectType);
+    if (delayNanos < 0) {
+      return first;
+    }
+
+    final CompletableFuture<RestResponse> result = new CompletableFuture<RestResponse>();
+    final AtomicInteger running = new AtomicInteger(1);
+    first.whenComplete(hedgeCompletion(result, running, null));
+    try {
+      timer.schedule(new Runnable() {
+        public void run() {
+          if (result.isDone()) {
+            return;
+          }
+          running.incrementAndGet();
+          hedgesStarted.get(objectType).increment();
+          callRest(restUrl).whenComplete(hedgeCompletion(result, running, hedgesWon.get(objectType)));
+        }
+      }, delayNanos, TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) {
+      // The timer has been shut down, so this call is not hedged.
+    }
+    return result;
+  }
+
+  private static BiConsumer<RestResponse, Throwable> hedgeCompletion(final CompletableFuture<RestResponse> result,
+                                                                     final AtomicInteger running,
+                                                                     final Metrics.Counter wins) {
+    return new BiConsumer<RestResponse, Throwable>() {
+      public void accept(RestResponse response, Throwable failure) {
+        boolean last = running.decrementAndGet() == 0;
+        if (!isUsable(response, failure) && !last) {
+          // The other call may do better.
+          return;
+        }
+        boolean completed = failure != null ? result.completeExceptionally(failure) : result.complete(response);
+        if (completed && wins != null) {
+          wins.increment();
+        }
+      }
+    };
+  }
+
+  /**
+   * @return the delay before a call of the object type is hedged, or -1 if there are too few latencies to tell.
+   */
+  private long hedgeDelayNanos(WebHookMessage.ObjectType objectType) {
+    Metrics.Histogram times = firstAttemptTimes.get(objectType);
+    if (times.getCount() < HEDGE_MIN_SAMPLES) {
+      return -1;
+    }
+    return Math.max(hedgeMinDelayNanos, times.percentileNanos(hedgePercentile));
+  }
+
+  /**
+   * @return false if the call could not be made, or was throttled or failed on the server.
+   */
+  private static boolean isUsable(RestResponse response, Throwable failure) {
+    return failure == null && response.getStatusCode() != 429 && response.getStatusCode() < 500;
+  }
+
+  /**
+   * Counts a rest response by object type and status, which is the status code or "error" if the call failed.
+   */
+  private static void countResponse(WebHookMessage.ObjectType objectType, String status) {
+    ConcurrentMap<String, Metrics.Counter> byStatus = restResponses.get(objectType);
+    Metrics.Counter counter = byStatus.get(status);
+    if (counter == null) {
+      counter = Metrics.counter("webhook_rest_responses_total", "object_type", objectType.name(), "status", status);
+      byStatus.putIfAbsent(status, counter);
+    }
+    counter.increment();
+  }
+
+  /**
+   * @return the cache of fetched objects, or null if there is none.
+   */
+  public ObjectDetailCache getDetailCache() {
+    return detailCache;
+  }
+
+  /**
+   * @return the executor the merchants are handled on, or null if they are handled on the calling thread.
+   */
+  public StripedExecutor getMerchantStripes() {
+    return merchantStripes;
+  }
+
+  /**
+   * Do something with the detailed data retrieved from the rest service, as it is read from the response.
+   *
+   * The default reads the whole object into a String and passes it to #handleDetailedData(String).  Override this
+   * instead to pick fields out of large objects, like orders with many line items, as they are read, for example
+   * with a JsonReader from #newJsonReader, without ever holding the whole object.  The stream is closed afterwards.
+   *
+   * @param detailedData the object as UTF-8 encoded json
+   */
+  protected void handleDetailedData(InputStream detailedData) throws IOException {
+    handleDetailedData(org.apache.commons.io.IOUtils.toString(detailedData, UTF_8));
+  }
+
+  /**
+   * @return a JsonReader over the detailed data passed to #handleDetailedData(InputStream).
+   */
+  protected static JsonReader newJsonReader(InputStream detailedData) {
+    return new JsonReader(new InputStreamReader(detailedData, UTF_8));
+  }
+
+  /**
+   * Do something with the detailed data retrieved from the rest service.
+   * @param detailedData
+   */
+  protected void handleDetailedData(String detailedData) {
+    System.out.println("    detailed data for the object: '" + detailedData + "'");
+  }
+
+  /**
+   * Starts a call to a rest service with the "GET" method and an ACCEPT header of application/json
    *
    * @param restUrl the url to call
-   * @return the string returned by the call.
-   * @throws IOException
-   */
-  private String callRest(String restUrl) throws IOException {
-    URL url = new URL(restUrl);
-    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-    conn.setRequestProperty("Accept", "application/json");
-    conn.setRequestMethod("GET");
-
-    // read the response
-    System.out.println("Response Code: " + conn.getResponseCode());
-    InputStream in = new BufferedInputStream(conn.getInputStream());
-    String response = org.apache.commons.io.IOUtils.toString(in, "UTF-8");
-    return (response);
+   * @return the response returned by the call.
+   */
+  private CompletableFuture<RestResponse> callRest(String restUrl) {
+    return restClient.get(restUrl);
+  }
+
+  /**
+   * An object waiting to be fetched with a list call.
+   */
+  private static class BatchedFetch {
+    final String objectId;
+    final CompletableFuture<RestResponse> response = new CompletableFuture<RestResponse>();
+
+    BatchedFetch(String objectId) {
+      this.objectId = objectId;
+    }
   }
 }
@@ -1,29 +1,104 @@
 package com.clover.webhook;
 
 import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Provides access tokens for merchants based on a file that contains a simple json mapping.
  *
  * If the passed file does not exist, one will be written, with a single entry.
  *
+ * Lookups are served from an immutable snapshot of the file, so they never touch the disk or take a lock.  A
+ * background thread watches the file's directory and swaps in a new snapshot when the files of the store change,
+ * once the changes have been quiet for a short debounce period.
+ *
  * Created by michaelhampton on 8/26/15.
  */
 public class FileAccessTokenService implements AccessTokenService {
 
+  private static final long DEFAULT_DEBOUNCE_MILLIS = 250;
+
   private FileStore fileStore;
+  private volatile Map<String, String> tokens = Collections.emptyMap();
+  private final FileChangeWatcher watcher;
+  private final List<Runnable> reloadListeners = new CopyOnWriteArrayList<Runnable>();
 
   public FileAccessTokenService(File file) {
-    fileStore = new FileStore(file);
+    this(file, DEFAULT_DEBOUNCE_MILLIS);
+  }
+
+  /**
+   * @param file the json file of merchantId to access token
+   * @param debounceMillis how long the file has to be left alone after a change before it is read again
+   */
+  public FileAccessTokenService(File file, long debounceMillis) {
+    this(new FileStore(file.getAbsoluteFile()), debounceMillis);
+  }
+
+  /**
+   * @param fileStore the store of merchantId to access token
+   * @param debounceMillis how long the store's files have to be left alone after a change before they are read again
+   */
+  public FileAccessTokenService(FileStore fileStore, long debounceMillis) {
+    this.fileStore = fileStore;
+    reload();
+    watcher = new FileChangeWatcher(fileStore.getFiles(), debounceMillis, new Runnable() {
+      public void run() {
+        reload();
+      }
+    }, "access-token-watcher");
   }
 
   public String getAccessToken(String merchantId) {
-    Map<String, String> map = fileStore.read();
+    return tokens.get(merchantId);
+  }
 
+  /**
+   * Answers the whole batch from one snapshot, so the tokens are consistent with each other even if the file is
+   * reloaded part way through.
+   */
+  public Map<String, String> getAccessTokens(Collection<String> merchantIds) {
+    Map<String, String> snapshot = tokens;
+    Map<String, String> accessTokens = new LinkedHashMap<String, String>();
+    for (String merchantId : merchantIds) {
+      String accessToken = snapshot.get(merchantId);
+      if (accessToken != null) {
+        accessTokens.put(merchantId, accessToken);
+      }
+    }
+    return accessTokens;
+  }
+
+  /**
+   * Reads the file and replaces the snapshot that lookups are served from, then runs the reload listeners.
+   */
+  public void reload() {
+    Map<String, String> map = fileStore.read();
     if (null != map) {
-      return map.get(merchantId);
+      tokens = Collections.unmodifiableMap(new HashMap<String, String>(map));
+    }
+    for (Runnable listener : reloadListeners) {
+      listener.run();
     }
-    return null;
+  }
+
+  /**
+   * Adds a listener that is run each time the tokens have been reloaded, for anything that caches what they said.
+   */
+  public void addReloadListener(Runnable listener) {
+    reloadListeners.add(listener);
+  }
+
+  /**
+   * Stops watching the file for changes.
+   */
+  public void shutdown() {
+    watcher.shutdown();
   }
 }
@@ -0,0 +1,113 @@
+package com.clover.webhook;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a set of files in one directory, and runs a callback on a background thread when they change.
+ *
+ * Writers often truncate and then write a file, or write it in several pieces, so the callback is only run once
+ * the changes have been quiet for a debounce period.
+ */
+class FileChangeWatcher {
+
+  private final Set<String> fileNames = new HashSet<String>();
+  private final Path directory;
+  private final long debounceMillis;
+  private final Runnable onChange;
+  private WatchService watchService;
+
+  /**
+   * Starts watching.  If the directory cannot be watched, a message is printed and the callback is never run.
+   *
+   * @param files the files to watch, which must all be in the same directory
+   * @param debounceMillis how long the files have to be left alone after a change before the callback is run
+   * @param onChange the callback
+   * @param name the name of the watching thread
+   */
+  FileChangeWatcher(Collection<File> files, long debounceMillis, Runnable onChange, String name) {
+    File directoryFile = null;
+    for (File file : files) {
+      fileNames.add(file.getName());
+      directoryFile = file.getAbsoluteFile().getParentFile();
+    }
+    this.directory = directoryFile.toPath();
+    this.debounceMillis = debounceMillis;
+    this.onChange = onChange;
+
+    try {
+      watchService = directory.getFileSystem().newWatchService();
+      directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    } catch (IOException e) {
+      System.out.println("Unable to watch " + directory + " for changes: " + e.getMessage());
+      watchService = null;
+      return;
+    }
+    Thread watcher = new Thread(new Runnable() {
+      public void run() {
+        watch();
+      }
+    }, name);
+    watcher.setDaemon(true);
+    watcher.start();
+  }
+
+  /**
+   * Stops watching.
+   */
+  void shutdown() {
+    if (watchService != null) {
+      try {
+        watchService.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private void watch() {
+    try {
+      while (true) {
+        if (!isFileChanged(watchService.take())) {
+          continue;
+        }
+        // Wait for the events to stop before running the callback.
+        WatchKey key;
+        while ((key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS)) != null) {
+          key.pollEvents();
+          key.reset();
+        }
+        try {
+          onChange.run();
+        } catch (RuntimeException e) {
+          e.printStackTrace();
+        }
+      }
+    } catch (InterruptedException e) {
+      // Shutting down
+    } catch (ClosedWatchServiceException e) {
+      // Shutting down
+    }
+  }
+
+  private boolean isFileChanged(WatchKey key) {
+    boolean changed = false;
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW || fileNames.contains(event.context().toString())) {
+        changed = true;
+      }
+    }
+    key.reset();
+    return changed;
+  }
+}
@@ -8,10 +8,14 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
+ * Stores a simple json mapping in a file.  The methods are synchronized, so one store can be shared by threads.
+ *
  * Created by michaelhampton on 8/27/15.
  */
 public class FileStore {
@@ -51,13 +55,57 @@ public class FileStore {
     }
   }
 
-  public void addEntry(String key, String value) {
+  /**
+   * Creates a store of the given type.
+   *
+   * @param file the json file the mapping is kept in
+   * @param storeType "log" for a LogStructuredFileStore, otherwise (or if null) a plain FileStore that rewrites
+   *                  the whole file on every change
+   */
+  public static FileStore create(File file, String storeType) {
+    if ("log".equalsIgnoreCase(storeType)) {
+      return new LogStructuredFileStore(file);
+    }
+    return new FileStore(file);
+  }
+
+  /**
+   * @return the json file the mapping is kept in.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * @return every file this store writes, for anyone that wants to watch for changes.
+   */
+  public List<File> getFiles() {
+    return Collections.singletonList(file);
+  }
+
+  public synchronized void addEntry(String key, String value) {
     read();
     map.put(key, value);
     store(map);
   }
 
-  public void store(Map map) {
+  /**
+   * Adds many entries at once, reading the file once and writing it once, rather than once per entry as #addEntry
+   * would.
+   */
+  public synchronized void addEntries(Map<String, String> entries) {
+    if (entries.isEmpty()) {
+      return;
+    }
+    read();
+    if (map == null) {
+      map = new HashMap<String, String>();
+    }
+    map.putAll(entries);
+    store(map);
+  }
+
+  public synchronized void store(Map map) {
     String json = gson.toJson(map);
 
     FileOutputStream outputStream = null;
@@ -79,7 +127,7 @@ public class FileStore {
     }
   }
 
-  public Map<String, String> read() {
+  public synchronized Map<String, String> read() {
     if(lastReadTime!=file.lastModified()) {
       System.out.println("Reading in file:" + file.getAbsolutePath() );
       lastReadTime = file.lastModified();
@@ -0,0 +1,225 @@
+package com.clover.webhook;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a single WebHookMessageHandler on its own bounded pool of threads, so that a slow handler
+ * only backs up its own queue and cannot hold up the other handlers.
+ *
+ * Nothing waits on the handler: #submit returns a future that completes when the handler is done with the message,
+ * and a timer cancels a message that takes longer than the timeout.
+ */
+public class HandlerBulkhead {
+
+  /**
+   * What to do with a message when the handler's queue is full.
+   */
+  public enum RejectionPolicy {
+    DROP,         // The new message is not handled by this handler.
+    DROP_OLDEST,  // The oldest queued message is dropped to make room for the new one.
+    CALLER_RUNS   // The new message is handled on the dispatching thread.
+  }
+
+  private final WebHookMessageHandler handler;
+  private final ThreadPoolExecutor executor;
+  private final long timeoutMillis;
+  /**
+   * Cancels the messages that run past the timeout.  Null when there is no timeout.
+   */
+  private final ScheduledThreadPoolExecutor timer;
+
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong timedOut = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  /**
+   * @param handler the handler to run
+   * @param threads the number of threads that run the handler
+   * @param queueDepth the number of messages that can wait for a thread
+   * @param timeoutMillis how long the handler is given to finish with a message, from when it is submitted, before
+   *                      it is cancelled, zero to give it as long as it takes
+   * @param rejectionPolicy what to do when the queue is full
+   */
+  public HandlerBulkhead(WebHookMessageHandler handler, int threads, int queueDepth, long timeoutMillis,
+                         RejectionPolicy rejectionPolicy) {
+    this.handler = handler;
+    this.timeoutMillis = timeoutMillis;
+    this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(queueDepth), new NamedThreadFactory(handler.getClass().getSimpleName()),
+        rejectionHandler(rejectionPolicy));
+    if (timeoutMillis > 0) {
+      this.timer = new ScheduledThreadPoolExecutor(1,
+          new NamedThreadFactory(handler.getClass().getSimpleName() + "-timeout"));
+      this.timer.setRemoveOnCancelPolicy(true);
+    } else {
+      this.timer = null;
+    }
+  }
+
+  public WebHookMessageHandler getHandler() {
+    return handler;
+  }
+
+  /**
+   * Queue the message for the handler.
+   *
+   * @param webHookEvent the message
+   * @return a future that completes with true when the handler has finished with the message, or with false if the
+   * message was dropped, timed out or the handler threw.  It never completes exceptionally.
+   */
+  public CompletableFuture<Boolean> submit(final WebHookMessage webHookEvent) {
+    final CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+    final Message message = new Message(webHookEvent, result);
+    executor.execute(message);
+    if (timer != null && !message.isDone()) {
+      message.timeout = timer.schedule(new Runnable() {
+        public void run() {
+          message.expired = true;
+          message.cancel(true);
+        }
+      }, timeoutMillis, TimeUnit.MILLISECONDS);
+      if (message.isDone()) {
+        message.timeout.cancel(false);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the number of messages waiting for a thread.
+   */
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  public long getTimedOutCount() {
+    return timedOut.get();
+  }
+
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  /**
+   * Stops the handler threads, interrupting any message that is being handled.
+   */
+  public void shutdown() {
+    for (Runnable queued : executor.shutdownNow()) {
+      cancel(queued);
+    }
+    if (timer != null) {
+      timer.shutdownNow();
+    }
+  }
+
+  private static RejectedExecutionHandler rejectionHandler(RejectionPolicy rejectionPolicy) {
+    switch (rejectionPolicy) {
+      case CALLER_RUNS:
+        return new ThreadPoolExecutor.CallerRunsPolicy();
+      case DROP_OLDEST:
+        return new RejectedExecutionHandler() {
+          public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+              cancel(r);
+              return;
+            }
+            // Cancel the dropped message so that whoever is waiting on it finds out right away.
+            cancel(executor.getQueue().poll());
+            executor.execute(r);
+          }
+        };
+      default:
+        return new RejectedExecutionHandler() {
+          public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            cancel(r);
+          }
+        };
+    }
+  }
+
+  private static void cancel(Runnable r) {
+    if (r instanceof Future) {
+      ((Future<?>) r).cancel(false);
+    }
+  }
+
+  /**
+   * A message for the handler, which completes its result once it has run, been cancelled or failed.
+   */
+  private class Message extends FutureTask<Void> {
+    private final CompletableFuture<Boolean> result;
+    volatile boolean expired;
+    volatile Future<?> timeout;
+
+    Message(final WebHookMessage webHookEvent, CompletableFuture<Boolean> result) {
+      super(new Runnable() {
+        public void run() {
+          handler.handleEvent(webHookEvent);
+        }
+      }, null);
+      this.result = result;
+    }
+
+    protected void done() {
+      Future<?> pending = timeout;
+      if (pending != null) {
+        pending.cancel(false);
+      }
+      if (isCancelled()) {
+        if (expired) {
+          timedOut.incrementAndGet();
+          System.out.println("Handler " + handler.getClass().getSimpleName() + " timed out after " + timeoutMillis + "ms");
+        } else {
+          rejected.incrementAndGet();
+          System.out.println("Handler " + handler.getClass().getSimpleName() + " is busy, message was dropped");
+        }
+        result.complete(false);
+        return;
+      }
+      try {
+        get();
+        result.complete(true);
+      } catch (ExecutionException e) {
+        failed.incrementAndGet();
+        e.getCause().printStackTrace();
+        result.complete(false);
+      } catch (InterruptedException e) {
+        // Not reached, the task is done.
+        result.complete(false);
+      }
+    }
+  }
+
+  private static class NamedThreadFactory implements ThreadFactory {
+    private final ThreadFactory delegate = Executors.defaultThreadFactory();
+    private final AtomicInteger count = new AtomicInteger();
+    private final String name;
+
+    NamedThreadFactory(String name) {
+      this.name = name;
+    }
+
+    public Thread newThread(Runnable r) {
+      Thread thread = delegate.newThread(r);
+      thread.setName(name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
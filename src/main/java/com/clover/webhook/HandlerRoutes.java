@@ -0,0 +1,212 @@
+package com.clover.webhook;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The handlers of the webhook and the part of each message that each of them subscribed to, see
+ * WebHookMessageHandler#getSubscription.
+ *
+ * The table is worked out when a handler is added or removed and never changes afterwards, adding or removing a
+ * handler makes a new one, so it can be read by any number of threads without locking.  Routing a message looks each
+ * update up once by its object type and update type, which gives the handlers that want it, so a handler that wants
+ * none of a message is not called and costs nothing more than the lookup.
+ */
+final class HandlerRoutes {
+
+  private static final WebHookMessage.ObjectType[] OBJECT_TYPES = WebHookMessage.ObjectType.values();
+  private static final WebHookMessage.UpdateType[] UPDATE_TYPES = WebHookMessage.UpdateType.values();
+
+  static final HandlerRoutes EMPTY = new HandlerRoutes(new WebHookMessageHandler[0], new Subscription[0]);
+
+  /**
+   * A handler and the message it should be given.
+   */
+  static final class Delivery {
+    final WebHookMessageHandler handler;
+    final WebHookMessage message;
+
+    Delivery(WebHookMessageHandler handler, WebHookMessage message) {
+      this.handler = handler;
+      this.message = message;
+    }
+  }
+
+  private final WebHookMessageHandler[] handlers;
+  private final Subscription[] subscriptions;
+
+  /**
+   * True if every handler takes every message, so messages are passed on as they are.
+   */
+  private final boolean allUnfiltered;
+
+  /**
+   * The handlers that want an update, by its object type and then the ordinal of its update type, with an extra entry
+   * at the end for an unknown update type.  Handlers that take every message are left out, they are given the message
+   * as it is.
+   */
+  private final Map<WebHookMessage.ObjectType, int[][]> table =
+      new EnumMap<WebHookMessage.ObjectType, int[][]>(WebHookMessage.ObjectType.class);
+  private final int[][] unknownObjectType;
+
+  private HandlerRoutes(WebHookMessageHandler[] handlers, Subscription[] subscriptions) {
+    this.handlers = handlers;
+    this.subscriptions = subscriptions;
+    boolean allUnfiltered = true;
+    for (Subscription subscription : subscriptions) {
+      allUnfiltered &= subscription.isAll();
+    }
+    this.allUnfiltered = allUnfiltered;
+    for (WebHookMessage.ObjectType objectType : OBJECT_TYPES) {
+      table.put(objectType, routesFor(objectType));
+    }
+    unknownObjectType = routesFor(null);
+  }
+
+  private int[][] routesFor(WebHookMessage.ObjectType objectType) {
+    int[][] byUpdateType = new int[UPDATE_TYPES.length + 1][];
+    for (int u = 0; u <= UPDATE_TYPES.length; u++) {
+      WebHookMessage.UpdateType updateType = u < UPDATE_TYPES.length ? UPDATE_TYPES[u] : null;
+      int[] routes = new int[handlers.length];
+      int count = 0;
+      for (int r = 0; r < handlers.length; r++) {
+        Subscription subscription = subscriptions[r];
+        if (!subscription.isAll()
+            && (subscription.getObjectTypes() == null
+                || (objectType != null && subscription.getObjectTypes().contains(objectType)))
+            && (subscription.getUpdateTypes() == null
+                || (updateType != null && subscription.getUpdateTypes().contains(updateType)))) {
+          routes[count++] = r;
+        }
+      }
+      byUpdateType[u] = Arrays.copyOf(routes, count);
+    }
+    return byUpdateType;
+  }
+
+  /**
+   * @return the table with the handler added after the others, or this table if it already has the handler.
+   */
+  HandlerRoutes with(WebHookMessageHandler handler, Subscription subscription) {
+    if (contains(handler)) {
+      return this;
+    }
+    WebHookMessageHandler[] newHandlers = Arrays.copyOf(handlers, handlers.length + 1);
+    Subscription[] newSubscriptions = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+    newHandlers[handlers.length] = handler;
+    newSubscriptions[subscriptions.length] = subscription;
+    return new HandlerRoutes(newHandlers, newSubscriptions);
+  }
+
+  /**
+   * @return the table without the handler, or this table if it does not have the handler.
+   */
+  HandlerRoutes without(WebHookMessageHandler handler) {
+    int index = indexOf(handler);
+    if (index < 0) {
+      return this;
+    }
+    List<WebHookMessageHandler> newHandlers = new ArrayList<WebHookMessageHandler>(Arrays.asList(handlers));
+    List<Subscription> newSubscriptions = new ArrayList<Subscription>(Arrays.asList(subscriptions));
+    newHandlers.remove(index);
+    newSubscriptions.remove(index);
+    return new HandlerRoutes(newHandlers.toArray(new WebHookMessageHandler[newHandlers.size()]),
+        newSubscriptions.toArray(new Subscription[newSubscriptions.size()]));
+  }
+
+  boolean contains(WebHookMessageHandler handler) {
+    return indexOf(handler) >= 0;
+  }
+
+  private int indexOf(WebHookMessageHandler handler) {
+    for (int i = 0; i < handlers.length; i++) {
+      if (handlers[i].equals(handler)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the handlers, in the order they were added.
+   */
+  List<WebHookMessageHandler> getHandlers() {
+    return Arrays.asList(handlers.clone());
+  }
+
+  /**
+   * Works out which handlers get a message, in the order they were added.  A handler that takes every message is
+   * given the message itself.  The others are given a copy holding only the updates they subscribed to, and the
+   * verification code if they want it, and are left out if that leaves nothing.
+   */
+  List<Delivery> route(WebHookMessage message) {
+    List<Delivery> deliveries = new ArrayList<Delivery>(handlers.length);
+    if (allUnfiltered) {
+      for (WebHookMessageHandler handler : handlers) {
+        deliveries.add(new Delivery(handler, message));
+      }
+      return deliveries;
+    }
+
+    List<Map<String, List<WebHookMessage.Update>>> selected =
+        new ArrayList<Map<String, List<WebHookMessage.Update>>>(Collections.nCopies(handlers.length,
+            (Map<String, List<WebHookMessage.Update>>) null));
+    Map<String, List<WebHookMessage.Update>> merchants = message.getMerchants();
+    if (merchants != null) {
+      for (Map.Entry<String, List<WebHookMessage.Update>> merchant : merchants.entrySet()) {
+        if (merchant.getValue() == null) {
+          continue;
+        }
+        String merchantId = merchant.getKey();
+        for (WebHookMessage.Update update : merchant.getValue()) {
+          if (update == null) {
+            continue;
+          }
+          int[][] byUpdateType = update.getObjectType() == null ? unknownObjectType : table.get(update.getObjectType());
+          int[] routes = byUpdateType[update.getType() == null ? UPDATE_TYPES.length : update.getType().ordinal()];
+          for (int r : routes) {
+            if (subscriptions[r].getMerchantIds() != null && !subscriptions[r].getMerchantIds().contains(merchantId)) {
+              continue;
+            }
+            Map<String, List<WebHookMessage.Update>> handlerMerchants = selected.get(r);
+            if (handlerMerchants == null) {
+              handlerMerchants = new LinkedHashMap<String, List<WebHookMessage.Update>>();
+              selected.set(r, handlerMerchants);
+            }
+            List<WebHookMessage.Update> updates = handlerMerchants.get(merchantId);
+            if (updates == null) {
+              updates = new ArrayList<WebHookMessage.Update>();
+              handlerMerchants.put(merchantId, updates);
+            }
+            updates.add(update);
+          }
+        }
+      }
+    }
+
+    for (int r = 0; r < handlers.length; r++) {
+      Subscription subscription = subscriptions[r];
+      if (subscription.isAll()) {
+        deliveries.add(new Delivery(handlers[r], message));
+        continue;
+      }
+      boolean verificationCode = message.getVerificationCode() != null && subscription.isVerificationCodes();
+      if (selected.get(r) == null && !verificationCode) {
+        continue;
+      }
+      WebHookMessage filtered = new WebHookMessage();
+      filtered.setAppId(message.getAppId());
+      if (verificationCode) {
+        filtered.setVerificationCode(message.getVerificationCode());
+      }
+      filtered.setMerchants(selected.get(r));
+      deliveries.add(new Delivery(handlers[r], filtered));
+    }
+    return deliveries;
+  }
+}
@@ -0,0 +1,322 @@
+package com.clover.webhook;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Drops the updates of a message that have already been handled, before it is dispatched, so a redelivery of a
+ * message (Clover redelivers on timeouts) does not fetch the same objects again.
+ *
+ * Checking and remembering are separate steps: #filter drops the updates that were already handled, and #commit
+ * remembers the updates of a message once its handlers have finished with it, leaving out any a handler marked as
+ * failed (see WebHookMessage.Update#markFailed).  So an update whose handling failed, timed out or was shed is
+ * handled again when it is redelivered.
+ *
+ * An update is a duplicate if one with the same merchant, objectId, update type and timestamp has been handled, and
+ * is stale if an update of the same object with a later timestamp has been handled.  Updates without a timestamp are
+ * always let through.
+ *
+ * What has been seen is remembered for a sliding window, split into buckets of equal time.  Each bucket holds
+ * 64 bit fingerprints of the updates, and the latest timestamp of each object, in open addressed arrays of
+ * longs, so there is no per entry garbage.  When the window moves on, or the newest bucket fills up, the oldest
+ * bucket is cleared and becomes the newest, so memory is fixed by the maximum entries whatever the rate of updates;
+ * a burst only shortens how long updates are remembered.
+ */
+public class IdempotencyFilter {
+
+  private static final int BUCKETS = 6;
+
+  private static final Metrics.Counter DUPLICATES =
+      Metrics.counter("webhook_suppressed_updates_total", "reason", "duplicate");
+  private static final Metrics.Counter STALE = Metrics.counter("webhook_suppressed_updates_total", "reason", "stale");
+
+  private final long bucketMillis;
+  private final Bucket[] buckets = new Bucket[BUCKETS];
+  private int current;
+
+  /**
+   * @param windowMillis how long updates are remembered
+   * @param maxEntries the most updates that are remembered
+   */
+  public IdempotencyFilter(long windowMillis, int maxEntries) {
+    this.bucketMillis = Math.max(1, windowMillis / BUCKETS);
+    int capacity = Math.max(1, maxEntries / BUCKETS);
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets[i] = new Bucket(capacity, now);
+    }
+  }
+
+  /**
+   * Removes the updates of the message that were already handled.  Nothing is remembered, see #commit.
+   *
+   * @return the message if nothing was removed, a copy without the removed updates, or null if every update was
+   * removed and there is nothing else in the message to handle.
+   */
+  public WebHookMessage filter(WebHookMessage message) {
+    Map<String, List<WebHookMessage.Update>> merchants = message.getMerchants();
+    if (merchants == null || merchants.isEmpty()) {
+      return message;
+    }
+    Map<String, List<WebHookMessage.Update>> kept = null;
+    int keptUpdates = 0;
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      for (Map.Entry<String, List<WebHookMessage.Update>> merchant : merchants.entrySet()) {
+        List<WebHookMessage.Update> updates = merchant.getValue();
+        List<WebHookMessage.Update> keptForMerchant = updates;
+        if (updates != null) {
+          for (int i = 0; i < updates.size(); i++) {
+            WebHookMessage.Update update = updates.get(i);
+            boolean admitted = update == null || !isHandled(merchant.getKey(), update, now);
+            if (!admitted && keptForMerchant == updates) {
+              keptForMerchant = new ArrayList<WebHookMessage.Update>(updates.subList(0, i));
+            } else if (admitted && keptForMerchant != updates) {
+              keptForMerchant.add(update);
+            }
+          }
+          keptUpdates += keptForMerchant.size();
+        }
+        if (keptForMerchant != updates && kept == null) {
+          // Copy the merchants before this one as they were.
+          kept = new LinkedHashMap<String, List<WebHookMessage.Update>>();
+          for (Map.Entry<String, List<WebHookMessage.Update>> earlier : merchants.entrySet()) {
+            if (earlier.getKey().equals(merchant.getKey())) {
+              break;
+            }
+            kept.put(earlier.getKey(), earlier.getValue());
+          }
+        }
+        if (kept != null && (keptForMerchant == null || !keptForMerchant.isEmpty())) {
+          kept.put(merchant.getKey(), keptForMerchant);
+        }
+      }
+    }
+    if (kept == null) {
+      return message;
+    }
+    if (keptUpdates == 0 && message.getVerificationCode() == null) {
+      return null;
+    }
+    WebHookMessage filtered = new WebHookMessage();
+    filtered.setAppId(message.getAppId());
+    filtered.setVerificationCode(message.getVerificationCode());
+    filtered.setMerchants(kept);
+    return filtered;
+  }
+
+  /**
+   * @return the number of updates remembered, across every bucket.
+   */
+  public synchronized long size() {
+    long size = 0;
+    for (Bucket bucket : buckets) {
+      size += bucket.seenCount;
+    }
+    return size;
+  }
+
+  /**
+   * Remembers the updates of a message that has been handled, so their redeliveries are dropped.  Updates a handler
+   * marked as failed are left out.
+   *
+   * @param message the message as it was dispatched, the one returned by #filter
+   */
+  public void commit(WebHookMessage message) {
+    Map<String, List<WebHookMessage.Update>> merchants = message.getMerchants();
+    if (merchants == null) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      for (Map.Entry<String, List<WebHookMessage.Update>> merchant : merchants.entrySet()) {
+        if (merchant.getValue() == null) {
+          continue;
+        }
+        for (WebHookMessage.Update update : merchant.getValue()) {
+          long ts = update == null ? -1 : update.getTimestamp();
+          if (ts < 0 || update.getObjectId() == null || update.isFailed()) {
+            continue;
+          }
+          rotate(now);
+          long object = fingerprint(merchant.getKey(), update.getObjectId());
+          buckets[current].add(key(object, update));
+          buckets[current].putLatest(object, ts);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true if the update has been handled, or is older than the latest handled update of its object.  Must
+   * hold the lock.
+   */
+  private boolean isHandled(String merchantId, WebHookMessage.Update update, long now) {
+    long ts = update.getTimestamp();
+    if (ts < 0 || update.getObjectId() == null) {
+      return false;
+    }
+    rotate(now);
+    long object = fingerprint(merchantId, update.getObjectId());
+    long key = key(object, update);
+    long latest = -1;
+    for (Bucket bucket : buckets) {
+      if (bucket.contains(key)) {
+        DUPLICATES.increment();
+        return true;
+      }
+      latest = Math.max(latest, bucket.latest(object));
+    }
+    if (ts < latest) {
+      STALE.increment();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return the fingerprint of the update, from the fingerprint of its object, its timestamp and its update type.
+   */
+  private static long key(long object, WebHookMessage.Update update) {
+    return nonZero(mix(object ^ (update.getTimestamp() * 0x9E3779B97F4A7C15L)
+        + (update.getType() == null ? 0 : update.getType().ordinal() + 1)));
+  }
+
+  /**
+   * Moves the window on, clearing the buckets that have expired, or the oldest one if the newest is full.
+   */
+  private void rotate(long now) {
+    long age = now - buckets[current].startedAt;
+    if (age < bucketMillis && !buckets[current].isFull()) {
+      return;
+    }
+    long expired = Math.min(BUCKETS, Math.max(1, age / bucketMillis));
+    for (int i = 0; i < expired; i++) {
+      current = (current + 1) % BUCKETS;
+      buckets[current].clear(now);
+    }
+  }
+
+  /**
+   * A 64 bit FNV-1a hash of the merchant and the object, finished with #mix.
+   */
+  private static long fingerprint(String merchantId, String objectId) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < merchantId.length(); i++) {
+      hash = (hash ^ merchantId.charAt(i)) * 0x100000001b3L;
+    }
+    hash = (hash ^ 0xffff) * 0x100000001b3L;
+    for (int i = 0; i < objectId.length(); i++) {
+      hash = (hash ^ objectId.charAt(i)) * 0x100000001b3L;
+    }
+    return nonZero(mix(hash));
+  }
+
+  /**
+   * The finalizer of MurmurHash3, which spreads every input bit over the whole hash.
+   */
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  /**
+   * Zero marks an empty slot, so it is never used as a fingerprint.
+   */
+  private static long nonZero(long hash) {
+    return hash == 0 ? 1 : hash;
+  }
+
+  /**
+   * The updates seen in one slice of the window, and the latest timestamp of each object.  The tables are kept at
+   * most half full, with linear probing.
+   */
+  private static final class Bucket {
+    private final int capacity;
+    private final int mask;
+    private final long[] seen;
+    private final long[] objects;
+    private final long[] latest;
+    int seenCount;
+    private int objectCount;
+    long startedAt;
+
+    Bucket(int capacity, long startedAt) {
+      this.capacity = capacity;
+      int size = Integer.highestOneBit(Math.max(2, capacity * 2 - 1)) << 1;
+      this.mask = size - 1;
+      this.seen = new long[size];
+      this.objects = new long[size];
+      this.latest = new long[size];
+      this.startedAt = startedAt;
+    }
+
+    boolean isFull() {
+      return seenCount >= capacity || objectCount >= capacity;
+    }
+
+    boolean contains(long key) {
+      for (int slot = (int) key & mask; seen[slot] != 0; slot = (slot + 1) & mask) {
+        if (seen[slot] == key) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    void add(long key) {
+      int slot = (int) key & mask;
+      while (seen[slot] != 0) {
+        if (seen[slot] == key) {
+          return;
+        }
+        slot = (slot + 1) & mask;
+      }
+      seen[slot] = key;
+      seenCount++;
+    }
+
+    /**
+     * @return the latest timestamp of the object in this bucket, or -1 if it has none.
+     */
+    long latest(long object) {
+      for (int slot = (int) object & mask; objects[slot] != 0; slot = (slot + 1) & mask) {
+        if (objects[slot] == object) {
+          return latest[slot];
+        }
+      }
+      return -1;
+    }
+
+    void putLatest(long object, long ts) {
+      int slot = (int) object & mask;
+      while (objects[slot] != 0) {
+        if (objects[slot] == object) {
+          latest[slot] = Math.max(latest[slot], ts);
+          return;
+        }
+        slot = (slot + 1) & mask;
+      }
+      objects[slot] = object;
+      latest[slot] = ts;
+      objectCount++;
+    }
+
+    void clear(long now) {
+      if (seenCount > 0 || objectCount > 0) {
+        Arrays.fill(seen, 0);
+        Arrays.fill(objects, 0);
+        seenCount = 0;
+        objectCount = 0;
+      }
+      startedAt = now;
+    }
+  }
+}
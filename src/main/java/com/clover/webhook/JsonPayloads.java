@@ -0,0 +1,204 @@
+package com.clover.webhook;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+
+/**
+ * Deserializes json request bodies directly from the request stream, without first copying them into a String.
+ *
+ * Bodies are parsed strictly: a body must be one well formed json value with nothing but whitespace after it.
+ */
+class JsonPayloads {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private JsonPayloads() {
+  }
+
+  /**
+   * Opens a JsonReader over the request body.
+   *
+   * @param request the request to read
+   * @param maxBytes the largest body that will be read, or zero for no limit.  Reading past the limit
+   *                 throws a PayloadTooLargeException.
+   * @return a reader positioned at the start of the body.
+   * @throws PayloadTooLargeException if the declared content length is already over the limit
+   * @throws IOException
+   */
+  static JsonReader open(HttpServletRequest request, long maxBytes) throws IOException {
+    String encoding = request.getCharacterEncoding();
+    return new JsonReader(new InputStreamReader(openStream(request, maxBytes), encoding != null ? encoding : "UTF-8"));
+  }
+
+  /**
+   * Reads the raw request body, for when the bytes themselves have to be kept.
+   *
+   * @param request the request to read
+   * @param maxBytes the largest body that will be read, or zero for no limit.
+   * @return the body
+   * @throws PayloadTooLargeException if the body is larger than maxBytes
+   * @throws IOException
+   */
+  static byte[] readBytes(HttpServletRequest request, long maxBytes) throws IOException {
+    InputStream in = openStream(request, maxBytes);
+    try {
+      return org.apache.commons.io.IOUtils.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Reads a single json value of the given type from a UTF-8 encoded body that has already been read.
+   *
+   * @return the value, or null if the body was empty.
+   * @throws JsonParseException if the body is not valid json for the type
+   */
+  static <T> T read(Gson gson, byte[] payload, Type type) {
+    JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(payload), UTF_8));
+    try {
+      return read(gson, reader, type);
+    } catch (IOException e) {
+      // Not reading from a stream, so this can only be bad json.
+      throw new JsonSyntaxException(e);
+    }
+  }
+
+  private static InputStream openStream(HttpServletRequest request, long maxBytes) throws IOException {
+    if (maxBytes > 0 && request.getContentLengthLong() > maxBytes) {
+      throw new PayloadTooLargeException(maxBytes);
+    }
+    InputStream in = request.getInputStream();
+    if (maxBytes > 0) {
+      in = new LimitedInputStream(in, maxBytes);
+    }
+    return in;
+  }
+
+  /**
+   * Reads a single json value of the given type from the request body.
+   *
+   * @return the value, or null if the body was empty.
+   * @throws PayloadTooLargeException if the body is larger than maxBytes
+   * @throws JsonParseException if the body is not valid json for the type
+   * @throws IOException
+   */
+  static <T> T read(Gson gson, HttpServletRequest request, long maxBytes, Type type) throws IOException {
+    JsonReader reader = open(request, maxBytes);
+    try {
+      return read(gson, reader, type);
+    } catch (JsonParseException e) {
+      // Gson wraps failures of the underlying stream, unwrap the one we care about.
+      if (e.getCause() instanceof PayloadTooLargeException) {
+        throw (PayloadTooLargeException) e.getCause();
+      }
+      throw e;
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Reads a single json value with the type's adapter, not Gson#fromJson, which makes the reader lenient while it
+   * reads, and then checks that nothing follows the value.
+   *
+   * @return the value, or null if there was nothing to read.
+   * @throws JsonSyntaxException if the json is malformed, not valid for the type, or followed by more content
+   * @throws IOException if the underlying stream fails
+   */
+  private static <T> T read(Gson gson, JsonReader reader, Type type) throws IOException {
+    reader.setLenient(false);
+    try {
+      try {
+        reader.peek();
+      } catch (EOFException e) {
+        return null;
+      }
+      @SuppressWarnings("unchecked")
+      T value = (T) gson.getAdapter(TypeToken.get(type)).read(reader);
+      if (reader.peek() != JsonToken.END_DOCUMENT) {
+        throw new JsonSyntaxException("Unexpected content after the json value");
+      }
+      return value;
+    } catch (MalformedJsonException e) {
+      throw new JsonSyntaxException(e);
+    } catch (EOFException e) {
+      throw new JsonSyntaxException(e);
+    } catch (IllegalStateException e) {
+      throw new JsonSyntaxException(e);
+    }
+  }
+
+  /**
+   * Thrown when a request body is larger than the configured limit.
+   */
+  static class PayloadTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    PayloadTooLargeException(long maxBytes) {
+      super("Payload is larger than " + maxBytes + " bytes");
+    }
+  }
+
+  /**
+   * An input stream that fails once more than a fixed number of bytes have been read.
+   */
+  private static class LimitedInputStream extends FilterInputStream {
+    private long remaining;
+    private final long maxBytes;
+
+    LimitedInputStream(InputStream in, long maxBytes) {
+      super(in);
+      this.remaining = maxBytes;
+      this.maxBytes = maxBytes;
+    }
+
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        consumed(1);
+      }
+      return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      int count = super.read(b, off, len);
+      if (count > 0) {
+        consumed(count);
+      }
+      return count;
+    }
+
+    public long skip(long n) throws IOException {
+      long count = super.skip(n);
+      consumed(count);
+      return count;
+    }
+
+    public boolean markSupported() {
+      return false;
+    }
+
+    private void consumed(long count) throws PayloadTooLargeException {
+      remaining -= count;
+      if (remaining < 0) {
+        throw new PayloadTooLargeException(maxBytes);
+      }
+    }
+  }
+}
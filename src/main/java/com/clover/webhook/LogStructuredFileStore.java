@@ -0,0 +1,298 @@
+package com.clover.webhook;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A FileStore that appends each new entry to a log instead of rewriting the whole json file.
+ *
+ * The json file is kept as a snapshot.  Entries are appended to a log file next to it (the same name with ".log"
+ * added), one json array of [key, value] per line.  Once the log has "compactThreshold" entries, the current map is
+ * written to a temporary file that is atomically renamed over the snapshot, and the log is emptied; so a reader of
+ * the snapshot never sees a partially written file.
+ *
+ * The map is recovered from the snapshot plus the log.  A store that did not write the log itself notices when the
+ * files change, and replays only the log lines it has not seen yet unless the snapshot was replaced.
+ */
+public class LogStructuredFileStore extends FileStore {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int DEFAULT_COMPACT_THRESHOLD = 1000;
+  private static final Type TOKEN_MAP_TYPE = new TypeToken<Map<String, String>>() {}.getType();
+
+  private static Gson gson = new Gson();
+
+  private final File logFile;
+  private final int compactThreshold;
+
+  private Map<String, String> map;
+  private long snapshotModified = -1;
+  private long snapshotLength = -1;
+  /**
+   * How much of the log has been applied to the map.
+   */
+  private long logOffset;
+  private int logEntries;
+
+  public LogStructuredFileStore(File file) {
+    this(file, DEFAULT_COMPACT_THRESHOLD);
+  }
+
+  /**
+   * @param file the json snapshot file
+   * @param compactThreshold the number of log entries that triggers a compaction
+   */
+  public LogStructuredFileStore(File file, int compactThreshold) {
+    super(file);
+    this.logFile = new File(file.getPath() + ".log");
+    this.compactThreshold = compactThreshold;
+    recover();
+  }
+
+  public List<File> getFiles() {
+    return Arrays.asList(getFile(), logFile);
+  }
+
+  /**
+   * Appends the entry to the log, compacting the log into the snapshot if it has grown past the threshold.
+   */
+  public synchronized void addEntry(String key, String value) {
+    read();
+    map.put(key, value);
+    String record = gson.toJson(new String[]{key, value}) + "\n";
+    if (logFile.length() > logOffset) {
+      // The log ends with a partly written line, from a writer that stopped part way.  End it, so that it is
+      // skipped as a bad line rather than corrupting this one.
+      record = "\n" + record;
+    }
+    byte[] line = record.getBytes(UTF_8);
+    FileOutputStream outputStream = null;
+    try {
+      outputStream = new FileOutputStream(logFile, true);
+      outputStream.write(line);
+      outputStream.close();
+      outputStream = null;
+      logOffset = logFile.length();
+      logEntries++;
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      if (null != outputStream) {
+        try {
+          outputStream.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+    if (logEntries >= compactThreshold) {
+      compact();
+    }
+  }
+
+  /**
+   * Adds many entries at once.  A batch that would fill the log is written straight to a new snapshot, otherwise
+   * the entries are appended to the log with a single write.
+   */
+  public synchronized void addEntries(Map<String, String> entries) {
+    if (entries.isEmpty()) {
+      return;
+    }
+    read();
+    map.putAll(entries);
+    if (logEntries + entries.size() >= compactThreshold) {
+      compact();
+      return;
+    }
+    StringBuilder records = new StringBuilder();
+    if (logFile.length() > logOffset) {
+      records.append('\n');
+    }
+    for (Map.Entry<String, String> entry : entries.entrySet()) {
+      records.append(gson.toJson(new String[]{entry.getKey(), entry.getValue()})).append('\n');
+    }
+    FileOutputStream outputStream = null;
+    try {
+      outputStream = new FileOutputStream(logFile, true);
+      outputStream.write(records.toString().getBytes(UTF_8));
+      outputStream.close();
+      outputStream = null;
+      logOffset = logFile.length();
+      logEntries += entries.size();
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      if (null != outputStream) {
+        try {
+          outputStream.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * Replaces everything in the store with the passed map.
+   */
+  @SuppressWarnings({"rawtypes", "unchecked"}) // FileStore#store takes a raw Map
+  public synchronized void store(Map map) {
+    this.map = new HashMap<String, String>(map);
+    compact();
+  }
+
+  /**
+   * @return the current map, after applying any changes other stores have made to the files.
+   */
+  public synchronized Map<String, String> read() {
+    File snapshot = getFile();
+    if (snapshot.lastModified() != snapshotModified || snapshot.length() != snapshotLength
+        || logFile.length() < logOffset) {
+      recover();
+    } else if (logFile.length() > logOffset) {
+      replayLog();
+    }
+    return map;
+  }
+
+  /**
+   * Writes the map to a new snapshot, swaps it in with an atomic rename, and empties the log.
+   */
+  public synchronized void compact() {
+    File snapshot = getFile();
+    File temp = new File(snapshot.getPath() + ".tmp");
+    FileOutputStream outputStream = null;
+    try {
+      outputStream = new FileOutputStream(temp);
+      outputStream.write(gson.toJson(map).getBytes(UTF_8));
+      outputStream.getFD().sync();
+      outputStream.close();
+      outputStream = null;
+      try {
+        Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      snapshotModified = snapshot.lastModified();
+      snapshotLength = snapshot.length();
+
+      // Everything in the log is in the snapshot now.  If we stop before the log is emptied, replaying it again
+      // on recovery does no harm.
+      new FileOutputStream(logFile).close();
+      logOffset = 0;
+      logEntries = 0;
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      if (null != outputStream) {
+        try {
+          outputStream.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * Rebuilds the map from the snapshot and the whole log.
+   */
+  private void recover() {
+    File snapshot = getFile();
+    System.out.println("Reading in file:" + snapshot.getAbsolutePath());
+    snapshotModified = snapshot.lastModified();
+    snapshotLength = snapshot.length();
+    Map<String, String> recovered = new HashMap<String, String>();
+    InputStream in = null;
+    try {
+      in = new FileInputStream(snapshot);
+      Map<String, String> snapshotMap = gson.fromJson(org.apache.commons.io.IOUtils.toString(in, "UTF-8"), TOKEN_MAP_TYPE);
+      if (snapshotMap != null) {
+        recovered.putAll(snapshotMap);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    } catch (JsonParseException e) {
+      e.printStackTrace();
+    } finally {
+      if (null != in) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+    map = recovered;
+    logOffset = 0;
+    logEntries = 0;
+    replayLog();
+  }
+
+  /**
+   * Applies the complete lines of the log after logOffset.  A partly written last line is left for next time.
+   */
+  private void replayLog() {
+    if (!logFile.exists()) {
+      return;
+    }
+    RandomAccessFile log = null;
+    try {
+      log = new RandomAccessFile(logFile, "r");
+      long length = log.length();
+      if (length <= logOffset) {
+        return;
+      }
+      byte[] tail = new byte[(int) (length - logOffset)];
+      log.seek(logOffset);
+      log.readFully(tail);
+      int lineStart = 0;
+      for (int i = 0; i < tail.length; i++) {
+        if (tail[i] == '\n') {
+          applyLine(new String(tail, lineStart, i - lineStart, UTF_8));
+          lineStart = i + 1;
+        }
+      }
+      logOffset += lineStart;
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      if (null != log) {
+        try {
+          log.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  private void applyLine(String line) {
+    try {
+      String[] entry = gson.fromJson(line, String[].class);
+      if (entry != null && entry.length == 2) {
+        map.put(entry[0], entry[1]);
+        logEntries++;
+      }
+    } catch (JsonParseException e) {
+      System.out.println("Skipping bad access token log entry: '" + line + "'");
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package com.clover.webhook;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Provides access tokens for merchants from a binary index file, read through a memory mapped buffer.
+ *
+ * The tokens stay in the page cache instead of on the heap, so a very large number of merchants costs
+ * almost no garbage collection work, and reloading is a remap rather than a parse.  The index is built from an
+ * access token json file with AccessTokenIndexConverter, see AccessTokenIndex for the layout.  The index file is
+ * watched, and remapped when it is replaced.
+ */
+public class MappedAccessTokenService implements AccessTokenService {
+
+  private final File file;
+  private volatile Index index;
+  private final FileChangeWatcher watcher;
+  private final List<Runnable> reloadListeners = new CopyOnWriteArrayList<Runnable>();
+
+  public MappedAccessTokenService(File file) throws IOException {
+    this.file = file.getAbsoluteFile();
+    index = map(this.file);
+    watcher = new FileChangeWatcher(Collections.singletonList(this.file), 250, new Runnable() {
+      public void run() {
+        try {
+          reload();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }, "access-token-index-watcher");
+  }
+
+  public String getAccessToken(String merchantId) {
+    return lookup(index, merchantId);
+  }
+
+  /**
+   * Answers the whole batch from one mapping of the index.
+   */
+  public Map<String, String> getAccessTokens(Collection<String> merchantIds) {
+    Index current = index;
+    Map<String, String> accessTokens = new LinkedHashMap<String, String>();
+    for (String merchantId : merchantIds) {
+      String accessToken = lookup(current, merchantId);
+      if (accessToken != null) {
+        accessTokens.put(merchantId, accessToken);
+      }
+    }
+    return accessTokens;
+  }
+
+  private static String lookup(Index current, String merchantId) {
+    if (!AccessTokenIndex.isValidMerchantId(merchantId)) {
+      return null;
+    }
+    int offset = AccessTokenIndex.findSlot(current.buffer, current.slots, merchantId);
+    if (current.buffer.get(offset) == 0) {
+      return null;
+    }
+    int tokenOffset = offset + AccessTokenIndex.MERCHANT_ID_LENGTH;
+    return new UUID(current.buffer.getLong(tokenOffset), current.buffer.getLong(tokenOffset + 8)).toString();
+  }
+
+  /**
+   * @return the number of merchants in the index.
+   */
+  public int size() {
+    return index.entries;
+  }
+
+  /**
+   * Maps the index file again, for when it has been replaced, then runs the reload listeners.
+   */
+  public void reload() throws IOException {
+    index = map(file);
+    System.out.println("Mapped access token index " + file.getAbsolutePath() + " with " + index.entries + " entries");
+    for (Runnable listener : reloadListeners) {
+      listener.run();
+    }
+  }
+
+  /**
+   * Adds a listener that is run each time the index has been remapped, for anything that caches what it said.
+   */
+  public void addReloadListener(Runnable listener) {
+    reloadListeners.add(listener);
+  }
+
+  /**
+   * Stops watching the index file for changes.
+   */
+  public void shutdown() {
+    watcher.shutdown();
+  }
+
+  private static Index map(File file) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      // The mapping stays valid after the file is closed.
+      MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+      if (buffer.capacity() < AccessTokenIndex.HEADER_SIZE || buffer.getInt(0) != AccessTokenIndex.MAGIC
+          || buffer.getInt(4) != AccessTokenIndex.VERSION) {
+        throw new IOException(file + " is not an access token index");
+      }
+      int slots = buffer.getInt(8);
+      if (Integer.bitCount(slots) != 1
+          || buffer.capacity() < AccessTokenIndex.HEADER_SIZE + (long) slots * AccessTokenIndex.SLOT_SIZE) {
+        throw new IOException(file + " is truncated");
+      }
+      return new Index(buffer, slots, buffer.getInt(12));
+    } finally {
+      in.close();
+    }
+  }
+
+  private static class Index {
+    final MappedByteBuffer buffer;
+    final int slots;
+    final int entries;
+
+    Index(MappedByteBuffer buffer, int slots, int entries) {
+      this.buffer = buffer;
+      this.slots = slots;
+      this.entries = entries;
+    }
+  }
+}
@@ -0,0 +1,296 @@
+package com.clover.webhook;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A registry of the counters, latency histograms and gauges of the webhook, written out by the MetricsServlet in the
+ * Prometheus text format.
+ *
+ * Counters and histograms are made of LongAdders, so recording is lock free and cheap enough for the hot path.  Look
+ * a metric up once and keep it, rather than looking it up for every event.  Asking for a metric that already exists
+ * returns the existing one; registering a gauge that already exists replaces it.
+ */
+public final class Metrics {
+
+  /**
+   * The upper bounds of the histogram buckets, in seconds, from 10 microseconds to 10 seconds.
+   */
+  private static final double[] BUCKET_SECONDS = {
+      0.00001, 0.00005, 0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10
+  };
+  private static final long[] BUCKET_NANOS = new long[BUCKET_SECONDS.length];
+
+  static {
+    for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+      BUCKET_NANOS[i] = (long) (BUCKET_SECONDS[i] * TimeUnit.SECONDS.toNanos(1));
+    }
+  }
+
+  /**
+   * The metrics by name and labels, so the ones with the same name are written together, see #key.
+   */
+  private static final ConcurrentMap<String, Metric> metrics = new ConcurrentSkipListMap<String, Metric>();
+
+  private Metrics() {
+  }
+
+  /**
+   * A value that is read when the metrics are written, like the depth of a queue.
+   */
+  public interface Gauge {
+    long get();
+  }
+
+  /**
+   * A count of events.
+   */
+  public static final class Counter extends Metric {
+    private final LongAdder count = new LongAdder();
+
+    Counter(String name, String labels) {
+      super(name, labels, "counter");
+    }
+
+    public void increment() {
+      count.increment();
+    }
+
+    public void add(long n) {
+      count.add(n);
+    }
+
+    public long get() {
+      return count.sum();
+    }
+
+    void write(Writer writer) throws IOException {
+      writer.write(name + labels + " " + count.sum() + "\n");
+    }
+  }
+
+  /**
+   * A histogram of latencies with fixed buckets.
+   */
+  public static final class Histogram extends Metric {
+    private final LongAdder[] buckets = new LongAdder[BUCKET_NANOS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    Histogram(String name, String labels) {
+      super(name, labels, "histogram");
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    /**
+     * Records the time since startNanos, a value from System.nanoTime().
+     */
+    public void recordSince(long startNanos) {
+      record(System.nanoTime() - startNanos);
+    }
+
+    public void record(long nanos) {
+      int bucket = 0;
+      while (bucket < BUCKET_NANOS.length && nanos > BUCKET_NANOS[bucket]) {
+        bucket++;
+      }
+      buckets[bucket].increment();
+      sumNanos.add(nanos);
+    }
+
+    public long getCount() {
+      long count = 0;
+      for (LongAdder bucket : buckets) {
+        count += bucket.sum();
+      }
+      return count;
+    }
+
+    /**
+     * Estimates a percentile of the recorded latencies, interpolating within the bucket it falls in.  Latencies
+     * above the last bucket are taken to be the last bucket's upper bound.
+     *
+     * @param fraction the percentile as a fraction, for example 0.95
+     * @return the estimate in nanoseconds, or -1 if nothing has been recorded.
+     */
+    public long percentileNanos(double fraction) {
+      long[] counts = new long[buckets.length];
+      long total = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        counts[i] = buckets[i].sum();
+        total += counts[i];
+      }
+      if (total == 0) {
+        return -1;
+      }
+      double rank = fraction * total;
+      long cumulative = 0;
+      for (int i = 0; i < BUCKET_NANOS.length; i++) {
+        if (counts[i] > 0 && cumulative + counts[i] >= rank) {
+          long lower = i == 0 ? 0 : BUCKET_NANOS[i - 1];
+          return lower + (long) ((BUCKET_NANOS[i] - lower) * ((rank - cumulative) / counts[i]));
+        }
+        cumulative += counts[i];
+      }
+      return BUCKET_NANOS[BUCKET_NANOS.length - 1];
+    }
+
+    void write(Writer writer) throws IOException {
+      // The buckets are cumulative, and "le" is added to any other labels.
+      String labelPrefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+      long cumulative = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        cumulative += buckets[i].sum();
+        String le = i < BUCKET_SECONDS.length ? BigDecimal.valueOf(BUCKET_SECONDS[i]).toPlainString() : "+Inf";
+        writer.write(name + "_bucket" + labelPrefix + "le=\"" + le + "\"} " + cumulative + "\n");
+      }
+      writer.write(name + "_sum" + labels + " " + (sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1)) + "\n");
+      writer.write(name + "_count" + labels + " " + cumulative + "\n");
+    }
+  }
+
+  private static final class GaugeMetric extends Metric {
+    private final Gauge gauge;
+
+    GaugeMetric(String name, String labels, Gauge gauge) {
+      super(name, labels, "gauge");
+      this.gauge = gauge;
+    }
+
+    void write(Writer writer) throws IOException {
+      writer.write(name + labels + " " + gauge.get() + "\n");
+    }
+  }
+
+  abstract static class Metric {
+    final String name;
+    final String labels;
+    final String type;
+
+    Metric(String name, String labels, String type) {
+      this.name = name;
+      this.labels = labels;
+      this.type = type;
+    }
+
+    abstract void write(Writer writer) throws IOException;
+  }
+
+  /**
+   * @param labels label names and values, alternating, for example "object_type", "O"
+   * @return the counter with the name and labels.
+   */
+  public static Counter counter(String name, String... labels) {
+    String labelText = formatLabels(labels);
+    Metric metric = metrics.get(key(name, labelText));
+    if (metric == null) {
+      Metric existing = metrics.putIfAbsent(key(name, labelText), metric = new Counter(name, labelText));
+      if (existing != null) {
+        metric = existing;
+      }
+    }
+    return (Counter) metric;
+  }
+
+  /**
+   * @param labels label names and values, alternating, for example "object_type", "O"
+   * @return the latency histogram with the name and labels.  The name should end in "_seconds".
+   */
+  public static Histogram histogram(String name, String... labels) {
+    String labelText = formatLabels(labels);
+    Metric metric = metrics.get(key(name, labelText));
+    if (metric == null) {
+      Metric existing = metrics.putIfAbsent(key(name, labelText), metric = new Histogram(name, labelText));
+      if (existing != null) {
+        metric = existing;
+      }
+    }
+    return (Histogram) metric;
+  }
+
+  /**
+   * Registers a gauge, replacing any gauge with the same name and labels.
+   *
+   * @param labels label names and values, alternating
+   */
+  public static void gauge(String name, Gauge gauge, String... labels) {
+    String labelText = formatLabels(labels);
+    metrics.put(key(name, labelText), new GaugeMetric(name, labelText, gauge));
+  }
+
+  /**
+   * Removes a gauge.
+   */
+  public static void removeGauge(String name, String... labels) {
+    Metric metric = metrics.get(key(name, formatLabels(labels)));
+    if (metric instanceof GaugeMetric) {
+      metrics.remove(key(name, formatLabels(labels)), metric);
+    }
+  }
+
+  /**
+   * Removes the gauges whose name starts with the prefix, for example when the thing they measure is shut down.
+   */
+  public static void removeGauges(String namePrefix) {
+    for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+      if (entry.getValue() instanceof GaugeMetric && entry.getValue().name.startsWith(namePrefix)) {
+        metrics.remove(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Writes every metric in the Prometheus text format.
+   */
+  public static void writeTo(Writer writer) throws IOException {
+    String lastName = null;
+    for (Metric metric : metrics.values()) {
+      if (!metric.name.equals(lastName)) {
+        writer.write("# TYPE " + metric.name + " " + metric.type + "\n");
+        lastName = metric.name;
+      }
+      metric.write(writer);
+    }
+  }
+
+  /**
+   * The name and labels are separated by a character that sorts before any other, so a name that is a prefix of
+   * another still has all of its metrics next to each other.
+   */
+  private static String key(String name, String labelText) {
+    return name + '\u0000' + labelText;
+  }
+
+  private static String formatLabels(String... labels) {
+    if (labels.length == 0) {
+      return "";
+    }
+    StringBuilder builder = new StringBuilder("{");
+    for (int i = 0; i + 1 < labels.length; i += 2) {
+      if (i > 0) {
+        builder.append(',');
+      }
+      builder.append(labels[i]).append("=\"");
+      String value = labels[i + 1];
+      for (int c = 0; c < value.length(); c++) {
+        char ch = value.charAt(c);
+        if (ch == '\\' || ch == '"') {
+          builder.append('\\').append(ch);
+        } else if (ch == '\n') {
+          builder.append("\\n");
+        } else {
+          builder.append(ch);
+        }
+      }
+      builder.append('"');
+    }
+    return builder.append('}').toString();
+  }
+}
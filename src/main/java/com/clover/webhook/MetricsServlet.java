@@ -0,0 +1,23 @@
+package com.clover.webhook;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes the webhook's metrics, see Metrics, in the Prometheus text format.
+ */
+public class MetricsServlet extends javax.servlet.http.HttpServlet {
+
+  private static final long serialVersionUID = 1L;
+
+  protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+    response.setContentType("text/plain; version=0.0.4");
+    response.setCharacterEncoding("UTF-8");
+    Writer writer = response.getWriter();
+    Metrics.writeTo(writer);
+    writer.flush();
+  }
+}
@@ -0,0 +1,159 @@
+package com.clover.webhook;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An AccessTokenService that remembers the merchants another service has no token for, so the messages of a
+ * merchant that never saved a token are not looked up, or reported, again for every delivery.
+ *
+ * A merchant is reported the first time it is found to have no token, and then answered from the cache until it is
+ * invalidated: when a token is saved for it (see SaveAuth, which finds this service through the servlet context),
+ * when the tokens are reloaded, or once it is older than the time to live.  The cache holds up to maxEntries
+ * merchants, least recently used are evicted first; with a size of zero nothing is remembered.
+ */
+public class NegativeCachingAccessTokenService implements AccessTokenService {
+
+  /**
+   * The servlet context attribute this service is published under, for the servlets that save tokens.
+   */
+  static final String CONTEXT_ATTRIBUTE = NegativeCachingAccessTokenService.class.getName();
+
+  private static final Metrics.Counter HITS =
+      Metrics.counter("webhook_access_token_negative_cache_total", "result", "hit");
+  private static final Metrics.Counter MISSES =
+      Metrics.counter("webhook_access_token_negative_cache_total", "result", "miss");
+
+  private final AccessTokenService delegate;
+  private final int maxEntries;
+  private final long ttlMillis;
+
+  /**
+   * The merchants without a token, and when they were found to have none.
+   */
+  private final LinkedHashMap<String, Long> missing;
+
+  /**
+   * Counts the invalidations, so a lookup that raced with one does not cache an answer that may be out of date.
+   */
+  private long generation;
+
+  /**
+   * @param delegate the service that has the tokens
+   * @param maxEntries the most merchants without a token that are remembered
+   * @param ttlMillis how long a merchant without a token is remembered
+   */
+  public NegativeCachingAccessTokenService(AccessTokenService delegate, int maxEntries, long ttlMillis) {
+    this.delegate = delegate;
+    this.maxEntries = maxEntries;
+    this.ttlMillis = ttlMillis;
+    this.missing = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+        return size() > NegativeCachingAccessTokenService.this.maxEntries;
+      }
+    };
+  }
+
+  public String getAccessToken(String merchantId) {
+    long lookupGeneration;
+    synchronized (missing) {
+      if (isMissing(merchantId)) {
+        HITS.increment();
+        return null;
+      }
+      lookupGeneration = generation;
+    }
+    MISSES.increment();
+    String accessToken = delegate.getAccessToken(merchantId);
+    if (accessToken == null) {
+      remember(merchantId, lookupGeneration);
+    }
+    return accessToken;
+  }
+
+  /**
+   * Asks the delegate, in one batch, for the merchants that are not known to be missing.
+   */
+  public Map<String, String> getAccessTokens(Collection<String> merchantIds) {
+    List<String> unknown = new ArrayList<String>(merchantIds.size());
+    long lookupGeneration;
+    synchronized (missing) {
+      for (String merchantId : merchantIds) {
+        if (!isMissing(merchantId)) {
+          unknown.add(merchantId);
+        }
+      }
+      lookupGeneration = generation;
+    }
+    HITS.add(merchantIds.size() - unknown.size());
+    if (unknown.isEmpty()) {
+      return new LinkedHashMap<String, String>();
+    }
+    MISSES.add(unknown.size());
+    Map<String, String> accessTokens = delegate.getAccessTokens(unknown);
+    for (String merchantId : unknown) {
+      if (!accessTokens.containsKey(merchantId)) {
+        remember(merchantId, lookupGeneration);
+      }
+    }
+    return accessTokens;
+  }
+
+  /**
+   * Forgets that the merchants have no token, for when tokens have been saved for them.
+   */
+  public void invalidate(Collection<String> merchantIds) {
+    synchronized (missing) {
+      generation++;
+      for (String merchantId : merchantIds) {
+        missing.remove(merchantId);
+      }
+    }
+  }
+
+  /**
+   * Forgets every merchant, for when the tokens have been reloaded.
+   */
+  public void invalidateAll() {
+    synchronized (missing) {
+      generation++;
+      missing.clear();
+    }
+  }
+
+  /**
+   * @return the number of merchants remembered as having no token.
+   */
+  public int size() {
+    synchronized (missing) {
+      return missing.size();
+    }
+  }
+
+  /**
+   * @return true if the merchant is remembered as having no token.  Must hold the lock.
+   */
+  private boolean isMissing(String merchantId) {
+    Long foundAt = missing.get(merchantId);
+    if (foundAt == null) {
+      return false;
+    }
+    if (System.currentTimeMillis() - foundAt > ttlMillis) {
+      missing.remove(merchantId);
+      return false;
+    }
+    return true;
+  }
+
+  private void remember(String merchantId, long lookupGeneration) {
+    System.out.println("No access token found for merchant id = " + merchantId);
+    synchronized (missing) {
+      if (generation == lookupGeneration && maxEntries > 0) {
+        missing.put(merchantId, System.currentTimeMillis());
+      }
+    }
+  }
+}
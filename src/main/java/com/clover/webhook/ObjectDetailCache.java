@@ -0,0 +1,146 @@
+package com.clover.webhook;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of the detailed objects fetched for webhook updates, keyed by merchant, object type and
+ * object id.
+ *
+ * Each entry remembers the update timestamp it was fetched for.  An entry answers for an update that is no newer
+ * than that timestamp (a redelivery, or a second update that was already covered by the fetch), and a newer update
+ * has to refresh it.  Entries are evicted when the cache is over its size, least recently used first, and once
+ * they are older than the time to live.
+ */
+public class ObjectDetailCache {
+
+  private final int maxEntries;
+  private final long ttlMillis;
+  private final LinkedHashMap<Key, CachedObject> entries;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param maxEntries the most objects that are kept
+   * @param ttlMillis how long an object is kept after it was fetched
+   */
+  public ObjectDetailCache(int maxEntries, long ttlMillis) {
+    this.maxEntries = maxEntries;
+    this.ttlMillis = ttlMillis;
+    this.entries = new LinkedHashMap<Key, CachedObject>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Key, CachedObject> eldest) {
+        if (size() > ObjectDetailCache.this.maxEntries) {
+          evictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @param ts the timestamp of the update that is asking for the object
+   * @return the cached response, or null if there is none that is at least as new as the update.
+   */
+  public RestResponse get(String merchantId, WebHookMessage.ObjectType objectType, String objectId, long ts) {
+    Key key = new Key(merchantId, objectType, objectId);
+    synchronized (entries) {
+      CachedObject entry = entries.get(key);
+      if (entry != null && System.currentTimeMillis() - entry.fetchedAt > ttlMillis) {
+        entries.remove(key);
+        evictions.incrementAndGet();
+        entry = null;
+      }
+      if (entry != null && entry.ts >= ts) {
+        hits.incrementAndGet();
+        return entry.response;
+      }
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Caches the response fetched for an update.  An entry for a newer update is not replaced.
+   */
+  public void put(String merchantId, WebHookMessage.ObjectType objectType, String objectId, long ts,
+                  RestResponse response) {
+    Key key = new Key(merchantId, objectType, objectId);
+    synchronized (entries) {
+      CachedObject existing = entries.get(key);
+      if (existing == null || existing.ts <= ts) {
+        entries.put(key, new CachedObject(response, ts, System.currentTimeMillis()));
+      }
+    }
+  }
+
+  /**
+   * Removes an object, for example because it was deleted.
+   */
+  public void invalidate(String merchantId, WebHookMessage.ObjectType objectType, String objectId) {
+    synchronized (entries) {
+      entries.remove(new Key(merchantId, objectType, objectId));
+    }
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  public String toString() {
+    return "ObjectDetailCache{size=" + size() + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "}";
+  }
+
+  private static class CachedObject {
+    final RestResponse response;
+    final long ts;
+    final long fetchedAt;
+
+    CachedObject(RestResponse response, long ts, long fetchedAt) {
+      this.response = response;
+      this.ts = ts;
+      this.fetchedAt = fetchedAt;
+    }
+  }
+
+  private static class Key {
+    final String merchantId;
+    final WebHookMessage.ObjectType objectType;
+    final String objectId;
+
+    Key(String merchantId, WebHookMessage.ObjectType objectType, String objectId) {
+      this.merchantId = merchantId;
+      this.objectType = objectType;
+      this.objectId = objectId;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return objectType == other.objectType && objectId.equals(other.objectId) && merchantId.equals(other.merchantId);
+    }
+
+    public int hashCode() {
+      return (merchantId.hashCode() * 31 + objectType.hashCode()) * 31 + objectId.hashCode();
+    }
+  }
+}
@@ -0,0 +1,229 @@
+package com.clover.webhook;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A RestClient that makes calls on a fixed pool of threads, with no more than a set number of calls in flight
+ * to any one host.  A call that cannot connect, or whose response stalls, within its timeout fails with a
+ * SocketTimeoutException.
+ *
+ * A call over its host's limit waits in that host's queue, not on a pool thread, and is handed to the pool when one
+ * of the host's calls finishes, so a slow host cannot hold the threads other hosts need.
+ *
+ * Responses are requested gzip encoded, and kept that way until they are read.
+ *
+ * Connections are kept alive and reused by the HttpURLConnection keep-alive cache.  A connection is only
+ * returned to that cache once its response has been read completely and its stream closed, which is always
+ * done here, even for error responses.  That cache keeps up to "http.maxConnections" idle connections per host, 5
+ * unless the JVM is started with -Dhttp.maxConnections; set it to at least the per host limit so the connections
+ * of a busy host are not closed and opened again.
+ */
+public class PooledRestClient implements RestClient {
+
+  private final ExecutorService executor;
+  private final int maxInFlightPerHost;
+  private final int connectTimeoutMillis;
+  private final int readTimeoutMillis;
+  private final ConcurrentMap<String, HostQueue> hostQueues = new ConcurrentHashMap<String, HostQueue>();
+
+  /**
+   * @param threads the number of calls that can be in flight across all hosts
+   * @param maxInFlightPerHost the number of calls that can be in flight to a single host
+   */
+  public PooledRestClient(int threads, int maxInFlightPerHost) {
+    this(threads, maxInFlightPerHost, 0, 0);
+  }
+
+  /**
+   * @param threads the number of calls that can be in flight across all hosts
+   * @param maxInFlightPerHost the number of calls that can be in flight to a single host
+   * @param connectTimeoutMillis how long to wait for a connection, or zero to wait forever
+   * @param readTimeoutMillis how long to wait for each read of the response, or zero to wait forever
+   */
+  public PooledRestClient(int threads, int maxInFlightPerHost, int connectTimeoutMillis, int readTimeoutMillis) {
+    this.maxInFlightPerHost = maxInFlightPerHost;
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+    this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "rest-client-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  public CompletableFuture<RestResponse> get(final String restUrl) {
+    final CompletableFuture<RestResponse> future = new CompletableFuture<RestResponse>();
+    final URL url;
+    try {
+      url = new URL(restUrl);
+    } catch (MalformedURLException e) {
+      future.completeExceptionally(e);
+      return future;
+    }
+    HostQueue queue = queueFor(url);
+    queue.submit(new Call(url, queue, future));
+    return future;
+  }
+
+  /**
+   * Stops the pool.  The calls that were waiting for a thread fail with a RejectedExecutionException.
+   */
+  public void shutdown() {
+    for (Runnable call : executor.shutdownNow()) {
+      if (call instanceof Call) {
+        ((Call) call).rejected();
+      }
+    }
+    for (HostQueue queue : hostQueues.values()) {
+      queue.failWaiting();
+    }
+  }
+
+  private RestResponse call(URL url) throws IOException {
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    conn.setConnectTimeout(connectTimeoutMillis);
+    conn.setReadTimeout(readTimeoutMillis);
+    conn.setRequestProperty("Accept", "application/json");
+    conn.setRequestProperty("Accept-Encoding", "gzip");
+    conn.setRequestMethod("GET");
+
+    int statusCode = conn.getResponseCode();
+    InputStream in = statusCode < HttpURLConnection.HTTP_BAD_REQUEST ? conn.getInputStream() : conn.getErrorStream();
+    byte[] body;
+    if (in == null) {
+      body = new byte[0];
+    } else {
+      try {
+        body = org.apache.commons.io.IOUtils.toByteArray(in);
+      } finally {
+        in.close();
+      }
+    }
+    // A gzip body is kept compressed, see RestResponse.
+    boolean gzipped = body.length > 0 && "gzip".equalsIgnoreCase(conn.getContentEncoding());
+    return new RestResponse(statusCode, conn.getHeaderField("Retry-After"), body, gzipped);
+  }
+
+  private HostQueue queueFor(URL url) {
+    String host = url.getHost() + ":" + (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+    HostQueue queue = hostQueues.get(host);
+    if (queue == null) {
+      HostQueue created = new HostQueue();
+      queue = hostQueues.putIfAbsent(host, created);
+      if (queue == null) {
+        queue = created;
+      }
+    }
+    return queue;
+  }
+
+  /**
+   * A call and the future it completes.
+   */
+  private class Call implements Runnable {
+    private final URL url;
+    private final HostQueue queue;
+    private final CompletableFuture<RestResponse> future;
+
+    Call(URL url, HostQueue queue, CompletableFuture<RestResponse> future) {
+      this.url = url;
+      this.queue = queue;
+      this.future = future;
+    }
+
+    public void run() {
+      try {
+        future.complete(call(url));
+      } catch (Exception e) {
+        future.completeExceptionally(e);
+      } finally {
+        queue.finished();
+      }
+    }
+
+    /**
+     * Fails the call because the pool has been shut down.
+     */
+    void rejected() {
+      future.completeExceptionally(new RejectedExecutionException("The rest client has been shut down"));
+    }
+  }
+
+  /**
+   * The calls to one host: those in flight, up to the per host limit, and those waiting for one of them to finish.
+   */
+  private class HostQueue {
+    private int inFlight;
+    private final Deque<Call> waiting = new ArrayDeque<Call>();
+
+    void submit(Call call) {
+      synchronized (this) {
+        if (inFlight >= maxInFlightPerHost) {
+          waiting.add(call);
+          return;
+        }
+        inFlight++;
+      }
+      execute(call);
+    }
+
+    /**
+     * Called as each call finishes, to hand the next waiting call to the pool.
+     */
+    void finished() {
+      Call next;
+      synchronized (this) {
+        next = waiting.poll();
+        if (next == null) {
+          inFlight--;
+          return;
+        }
+      }
+      execute(next);
+    }
+
+    /**
+     * Fails every call that is waiting, after the pool has been shut down.
+     */
+    void failWaiting() {
+      while (true) {
+        Call next;
+        synchronized (this) {
+          next = waiting.poll();
+        }
+        if (next == null) {
+          return;
+        }
+        next.rejected();
+      }
+    }
+
+    private void execute(Call call) {
+      try {
+        executor.execute(call);
+      } catch (RejectedExecutionException e) {
+        call.rejected();
+        // Shut down, so the calls waiting behind this one will not run either.
+        failWaiting();
+      }
+    }
+  }
+}
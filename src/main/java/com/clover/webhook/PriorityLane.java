@@ -0,0 +1,62 @@
+package com.clover.webhook;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The lanes of the work queue, most urgent first, see WebHookWorkQueue.
+ */
+public enum PriorityLane {
+  /**
+   * Verification codes, and app and merchant updates, which a person may be waiting on.
+   */
+  CRITICAL(6),
+  /**
+   * Payment and order updates.
+   */
+  TRANSACTIONS(3),
+  /**
+   * Inventory and customer updates, which come in floods when a catalog is edited or imported.
+   */
+  CATALOG(1);
+
+  private final int defaultWeight;
+
+  PriorityLane(int defaultWeight) {
+    this.defaultWeight = defaultWeight;
+  }
+
+  /**
+   * @return the share of the messages taken from this lane while every lane has messages, unless configured.
+   */
+  public int getDefaultWeight() {
+    return defaultWeight;
+  }
+
+  /**
+   * @return the lane of the most urgent update in the message.  A message with no updates, like a verification
+   * code, is critical.
+   */
+  public static PriorityLane classify(WebHookMessage webHookEvent) {
+    Map<String, List<WebHookMessage.Update>> merchants = webHookEvent.getMerchants();
+    if (webHookEvent.getVerificationCode() != null || merchants == null || merchants.isEmpty()) {
+      return CRITICAL;
+    }
+    PriorityLane lane = CATALOG;
+    for (List<WebHookMessage.Update> updates : merchants.values()) {
+      if (updates == null) {
+        continue;
+      }
+      for (WebHookMessage.Update update : updates) {
+        WebHookMessage.ObjectType objectType = update == null ? null : update.getObjectType();
+        if (objectType == WebHookMessage.ObjectType.A || objectType == WebHookMessage.ObjectType.M) {
+          return CRITICAL;
+        }
+        if (objectType == WebHookMessage.ObjectType.P || objectType == WebHookMessage.ObjectType.O) {
+          lane = TRANSACTIONS;
+        }
+      }
+    }
+    return lane;
+  }
+}
@@ -0,0 +1,23 @@
+package com.clover.webhook;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Interface that defines an asynchronous http client used to make the rest calls for webhook events.
+ */
+public interface RestClient {
+
+  /**
+   * Starts a "GET" call with an ACCEPT header of application/json.
+   *
+   * @param restUrl the url to call
+   * @return a future that completes with the response, whatever its status code, or completes
+   * exceptionally if the call could not be made.
+   */
+  CompletableFuture<RestResponse> get(String restUrl);
+
+  /**
+   * Releases the threads and connections held by the client.
+   */
+  void shutdown();
+}
@@ -0,0 +1,92 @@
+package com.clover.webhook;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The status and body of a completed rest call.
+ *
+ * A body that was sent gzip encoded is kept compressed, and only inflated as it is read, so a large response costs
+ * its compressed size until it is used, and nothing more if it is read as a stream.
+ */
+public class RestResponse {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final int statusCode;
+  private final String retryAfter;
+  private final byte[] body;
+  private final boolean gzipped;
+
+  public RestResponse(int statusCode, String retryAfter, byte[] body) {
+    this(statusCode, retryAfter, body, false);
+  }
+
+  /**
+   * @param gzipped true if the body is gzip encoded
+   */
+  public RestResponse(int statusCode, String retryAfter, byte[] body, boolean gzipped) {
+    this.statusCode = statusCode;
+    this.retryAfter = retryAfter;
+    this.body = body;
+    this.gzipped = gzipped;
+  }
+
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  /**
+   * @return true for a 2xx status code.
+   */
+  public boolean isSuccessful() {
+    return statusCode >= 200 && statusCode < 300;
+  }
+
+  /**
+   * @return the value of the Retry-After header, or null if there was none.
+   */
+  public String getRetryAfter() {
+    return retryAfter;
+  }
+
+  /**
+   * @return the body decoded as UTF-8.
+   * @throws UncheckedIOException if the body is gzip encoded and corrupt
+   */
+  public String getBody() {
+    if (!gzipped) {
+      return new String(body, UTF_8);
+    }
+    try {
+      InputStream in = getBodyStream();
+      try {
+        return org.apache.commons.io.IOUtils.toString(in, UTF_8);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * @return the body, inflated as it is read if it is gzip encoded.
+   * @throws IOException if the body is gzip encoded and the gzip header is corrupt
+   */
+  public InputStream getBodyStream() throws IOException {
+    InputStream in = new ByteArrayInputStream(body);
+    return gzipped ? new GZIPInputStream(in) : in;
+  }
+
+  /**
+   * @return the number of bytes held for the body, compressed if it is gzip encoded.
+   */
+  public int getBodySize() {
+    return body.length;
+  }
+}
@@ -1,27 +1,54 @@
 package com.clover.webhook;
 
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * Created by michaelhampton on 8/27/15.
  */
 public class SaveAuth extends javax.servlet.http.HttpServlet {
 
-  private Gson gson = new Gson();
+  /**
+   * The longest merchant id or access token that is accepted.
+   */
+  private static final int MAX_ID_LENGTH = 256;
+
   FileStore fileStore;
 
+  /**
+   * The largest request body that will be read, or zero for no limit.
+   */
+  private long maxPayloadBytes;
+
+  /**
+   * How often, in entries read, progress is printed.
+   */
+  private int importProgressEntries;
+
+  /**
+   * The most valid entries held before they are saved.
+   */
+  private int importChunkEntries;
+
+  /**
+   * The most skipped entries that are listed in the response.
+   */
+  private int maxReportedErrors;
+
   /**
    * Loads the init parameters for "accessTokenDirectoryEnvVar" and "accessTokenFileName".
    *
@@ -36,6 +63,14 @@ public class SaveAuth extends javax.servlet.http.HttpServlet {
    *
    *  Then a call is made to get the value of the environment variable 'OPENSHIFT_DATA_DIR'
    *
+   *  "accessTokenStore" picks how the file is written, "json" (the default) rewrites the whole file for each
+   *  token, "log" appends to a log that is compacted into the file.  It should match the WebHook servlet.
+   *
+   *  "maxPayloadBytes" limits the size of the request body, zero or unset means no limit.
+   *
+   *  "importChunkEntries", "importProgressEntries" and "importMaxReportedErrors" control how large batches are saved,
+   *  the progress printed and the errors reported, see #doPost.
+   *
    * @param config
    * @throws ServletException
    */
@@ -47,33 +82,176 @@ public class SaveAuth extends javax.servlet.http.HttpServlet {
     String fileName = System.getenv().get(accessTokenDirectoryEnvVar) + accessTokenFileName;
 
     File accessTokenFile = new File(fileName);
-    fileStore = new FileStore(accessTokenFile);
+    fileStore = FileStore.create(accessTokenFile, config.getInitParameter("accessTokenStore"));
+    maxPayloadBytes = WebHook.getIntInitParameter(config, "maxPayloadBytes", 0);
+    importProgressEntries = Math.max(1, WebHook.getIntInitParameter(config, "importProgressEntries", 10000));
+    importChunkEntries = Math.max(1, WebHook.getIntInitParameter(config, "importChunkEntries", 10000));
+    maxReportedErrors = WebHook.getIntInitParameter(config, "importMaxReportedErrors", 100);
   }
 
   protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
     doPost(request, response);
   }
 
+  /**
+   * Streams a json map of merchantId to access token from the request, and saves the valid entries in chunks of
+   * "importChunkEntries", one write to the store per chunk, so no more than a chunk of the request is held in
+   * memory whatever its size.  With the "log" store each chunk is one append; the "json" store rewrites the token
+   * file for each chunk.
+   *
+   * A payload that cannot be parsed, or has anything after the map, gets a 400, and one larger than the
+   * "maxPayloadBytes" init parameter gets a 413.  The chunks saved before the problem was found stay saved, and the
+   * error says how many entries that was; the sender can fix the payload and send it again.
+   *
+   * Entries with a bad merchant id or access token are skipped.  The response is a json summary, for example
+   *
+   *   {"entries":3,"saved":2,"invalid":1,"errors":[{"merchantId":"BBFF8NBCXEMDT","message":"..."}]}
+   *
+   * listing up to "importMaxReportedErrors" of the skipped entries.  Progress is printed every
+   * "importProgressEntries" entries.  The saved merchants are dropped from the WebHook's cache of merchants without
+   * a token, so a miss is looked up again; the token itself is only seen once the token file has been reloaded.
+   */
   protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-    String payload = new String();
-    // Read the contents of the raw POST data sent in the request and store it
-    BufferedReader r = request.getReader();
-    String line;
-    while ((line = r.readLine()) != null) {
-      payload = payload.concat(line + "\n");
+    // format {"BBFF8NBCXEMDT":"16258cd4-3c1b-3b74-1170-37ebd36bb331"}
+    Map<String, String> entries = new HashMap<String, String>();
+    List<String[]> errors = new ArrayList<String[]>();
+    int read = 0;
+    int invalid = 0;
+    int saved = 0;
+    long start = System.currentTimeMillis();
+    JsonReader reader = null;
+    try {
+      reader = JsonPayloads.open(request, maxPayloadBytes);
+      JsonToken first;
+      try {
+        first = reader.peek();
+      } catch (EOFException e) {
+        first = JsonToken.END_DOCUMENT;
+      }
+      if (first == JsonToken.END_DOCUMENT || first == JsonToken.NULL) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No access tokens sent");
+        return;
+      }
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String merchantId = reader.nextName();
+        read++;
+        String error;
+        if (reader.peek() != JsonToken.STRING) {
+          reader.skipValue();
+          error = "The access token is not a string";
+        } else {
+          String accessToken = reader.nextString();
+          error = validate(merchantId, accessToken);
+          if (error == null) {
+            entries.put(merchantId, accessToken);
+            if (entries.size() >= importChunkEntries) {
+              saved += save(entries);
+            }
+          }
+        }
+        if (error != null) {
+          invalid++;
+          if (errors.size() < maxReportedErrors) {
+            errors.add(new String[]{merchantId, error});
+          }
+        }
+        if (read % importProgressEntries == 0) {
+          System.out.println("Read " + read + " access tokens, " + invalid + " invalid");
+        }
+      }
+      reader.endObject();
+      if (reader.peek() != JsonToken.END_DOCUMENT) {
+        throw new MalformedJsonException("Unexpected content after the access tokens");
+      }
+    } catch (JsonPayloads.PayloadTooLargeException e) {
+      response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage() + savedBefore(saved));
+      return;
+    } catch (MalformedJsonException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unable to parse access tokens" + savedBefore(saved));
+      return;
+    } catch (EOFException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unable to parse access tokens" + savedBefore(saved));
+      return;
+    } catch (IllegalStateException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unable to parse access tokens" + savedBefore(saved));
+      return;
+    } finally {
+      if (reader != null) {
+        reader.close();
+      }
     }
-    r.close();
-    payload = payload.trim();
 
-    System.out.println("The payload was: '" + payload + "'");
+    saved += save(entries);
+    if (read >= importProgressEntries) {
+      System.out.println("Saved " + saved + " access tokens in " + (System.currentTimeMillis() - start) + "ms");
+    }
 
-    Map<String, String> map = new HashMap<String, String>();
-    map = gson.fromJson(payload, map.getClass()); // format {"BBFF8NBCXEMDT":"16258cd4-3c1b-3b74-1170-37ebd36bb331"}
-    Set<String> keys = map.keySet();
-    for(String key : keys) {
-      fileStore.addEntry(key, map.get(key));
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    JsonWriter writer = new JsonWriter(response.getWriter());
+    writer.beginObject();
+    writer.name("entries").value(read);
+    writer.name("saved").value(saved);
+    writer.name("invalid").value(invalid);
+    writer.name("errors").beginArray();
+    for (String[] error : errors) {
+      writer.beginObject();
+      writer.name("merchantId").value(error[0]);
+      writer.name("message").value(error[1]);
+      writer.endObject();
     }
-    response.getWriter().write(payload);
+    writer.endArray();
+    writer.endObject();
+    writer.flush();
+  }
+
+  /**
+   * Writes a chunk of entries to the store, drops the merchants from the WebHook's cache of merchants without a
+   * token, and clears the chunk.
+   *
+   * @return the number of entries saved.
+   */
+  private int save(Map<String, String> entries) {
+    if (entries.isEmpty()) {
+      return 0;
+    }
+    fileStore.addEntries(entries);
+    Object negativeCache = getServletContext().getAttribute(NegativeCachingAccessTokenService.CONTEXT_ATTRIBUTE);
+    if (negativeCache instanceof NegativeCachingAccessTokenService) {
+      ((NegativeCachingAccessTokenService) negativeCache).invalidate(entries.keySet());
+    }
+    int count = entries.size();
+    entries.clear();
+    return count;
   }
-}
 
+  private static String savedBefore(int saved) {
+    return saved == 0 ? ", nothing was saved" : ", " + saved + " access tokens were saved before the error";
+  }
+
+  /**
+   * @return why the entry cannot be saved, or null if it can.  Merchant ids are letters and digits, and access
+   * tokens are not empty and have no whitespace or control characters.
+   */
+  static String validate(String merchantId, String accessToken) {
+    if (merchantId.isEmpty() || merchantId.length() > MAX_ID_LENGTH) {
+      return "The merchant id is empty or too long";
+    }
+    for (int i = 0; i < merchantId.length(); i++) {
+      char c = merchantId.charAt(i);
+      if (!((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9'))) {
+        return "The merchant id is not letters and digits";
+      }
+    }
+    if (accessToken.isEmpty() || accessToken.length() > MAX_ID_LENGTH) {
+      return "The access token is empty or too long";
+    }
+    for (int i = 0; i < accessToken.length(); i++) {
+      if (accessToken.charAt(i) <= ' ' || accessToken.charAt(i) == 0x7f) {
+        return "The access token has whitespace or control characters";
+      }
+    }
+    return null;
+  }
+}
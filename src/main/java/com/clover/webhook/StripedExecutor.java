@@ -0,0 +1,122 @@
+package com.clover.webhook;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs tasks on a fixed number of single threaded stripes, choosing the stripe from a key.
+ *
+ * Tasks with the same key always run on the same stripe, one at a time in the order they were submitted, while
+ * tasks with keys on different stripes run in parallel.  The DetailedWebHookMessageHandler uses the merchant id as
+ * the key, so the updates for a merchant are never reordered.
+ */
+public class StripedExecutor {
+
+  private final Stripe[] stripes;
+
+  /**
+   * @param stripeCount the number of stripes, and so the most tasks that run at once
+   * @param name the prefix for the names of the stripe threads
+   */
+  public StripedExecutor(int stripeCount, final String name) {
+    stripes = new Stripe[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      stripes[i] = new Stripe(name + "-" + i);
+    }
+  }
+
+  /**
+   * Queues a task on the stripe for the key.
+   *
+   * @return a future that completes when the task has run.
+   */
+  public Future<?> submit(Object key, Runnable task) {
+    Stripe stripe = stripes[stripeIndex(key)];
+    Future<?> future = stripe.executor.submit(task);
+    stripe.recordDepth();
+    return future;
+  }
+
+  /**
+   * @return the stripe that tasks for the key run on.
+   */
+  public int stripeIndex(Object key) {
+    return (key.hashCode() & Integer.MAX_VALUE) % stripes.length;
+  }
+
+  public int getStripeCount() {
+    return stripes.length;
+  }
+
+  /**
+   * @return the number of tasks waiting to run on a stripe.
+   */
+  public int getQueueDepth(int stripe) {
+    return stripes[stripe].executor.getQueue().size();
+  }
+
+  /**
+   * @return the most tasks that have been waiting to run on a stripe at once.
+   */
+  public long getMaxQueueDepth(int stripe) {
+    return stripes[stripe].maxDepth.get();
+  }
+
+  /**
+   * @return the number of tasks that have finished on a stripe.
+   */
+  public long getCompletedCount(int stripe) {
+    return stripes[stripe].executor.getCompletedTaskCount();
+  }
+
+  /**
+   * Stops the stripes, interrupting the tasks that are running and dropping the ones that are waiting.
+   */
+  public void shutdown() {
+    for (Stripe stripe : stripes) {
+      stripe.executor.shutdownNow();
+    }
+  }
+
+  public String toString() {
+    StringBuilder builder = new StringBuilder("StripedExecutor{");
+    for (int i = 0; i < stripes.length; i++) {
+      if (i > 0) {
+        builder.append(", ");
+      }
+      builder.append(i).append("=").append(getQueueDepth(i)).append("/").append(getMaxQueueDepth(i));
+    }
+    return builder.append("}").toString();
+  }
+
+  private static class Stripe {
+    final ThreadPoolExecutor executor;
+    final AtomicLong maxDepth = new AtomicLong();
+
+    Stripe(final String name) {
+      final AtomicInteger threadCount = new AtomicInteger();
+      executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              // A replacement is only started if a task kills the thread.
+              Thread thread = new Thread(r, threadCount.getAndIncrement() == 0 ? name : name + "-" + threadCount);
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+    }
+
+    void recordDepth() {
+      long depth = executor.getQueue().size();
+      long max = maxDepth.get();
+      while (depth > max && !maxDepth.compareAndSet(max, depth)) {
+        max = maxDepth.get();
+      }
+    }
+  }
+}
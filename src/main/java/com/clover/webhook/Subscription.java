@@ -0,0 +1,134 @@
+package com.clover.webhook;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The part of the webhook traffic a WebHookMessageHandler wants, see WebHookMessageHandler#getSubscription.
+ *
+ * A handler with a subscription is only given the updates that match it, in a copy of the message that holds
+ * nothing else, and is not called at all for a message with none.  Subscriptions are immutable; the methods that
+ * narrow one return a new one.
+ */
+public final class Subscription {
+
+  /**
+   * Every message, as it was received, including updates with an object or update type that is not known.
+   */
+  public static final Subscription ALL = new Subscription(null, null, null, true);
+
+  private final Set<WebHookMessage.ObjectType> objectTypes;
+  private final Set<WebHookMessage.UpdateType> updateTypes;
+  private final Set<String> merchantIds;
+  private final boolean verificationCodes;
+
+  private Subscription(Set<WebHookMessage.ObjectType> objectTypes, Set<WebHookMessage.UpdateType> updateTypes,
+                       Set<String> merchantIds, boolean verificationCodes) {
+    this.objectTypes = objectTypes;
+    this.updateTypes = updateTypes;
+    this.merchantIds = merchantIds;
+    this.verificationCodes = verificationCodes;
+  }
+
+  /**
+   * @return a subscription to the updates of the object types, of any update type, including unknown ones.
+   */
+  public static Subscription to(WebHookMessage.ObjectType first, WebHookMessage.ObjectType... rest) {
+    return to(EnumSet.of(first, rest));
+  }
+
+  /**
+   * @return a subscription to the updates of the object types, of any update type, including unknown ones.
+   */
+  public static Subscription to(Set<WebHookMessage.ObjectType> objectTypes) {
+    return new Subscription(Collections.unmodifiableSet(copyOf(objectTypes, WebHookMessage.ObjectType.class)), null,
+        null, false);
+  }
+
+  /**
+   * @return a subscription to the updates with one of the object types and one of the update types.
+   */
+  public static Subscription to(Set<WebHookMessage.ObjectType> objectTypes,
+                                Set<WebHookMessage.UpdateType> updateTypes) {
+    return new Subscription(Collections.unmodifiableSet(copyOf(objectTypes, WebHookMessage.ObjectType.class)),
+        Collections.unmodifiableSet(copyOf(updateTypes, WebHookMessage.UpdateType.class)), null, false);
+  }
+
+  /**
+   * @return a subscription to verification codes only.
+   */
+  public static Subscription verificationCodes() {
+    return new Subscription(Collections.<WebHookMessage.ObjectType>emptySet(),
+        Collections.<WebHookMessage.UpdateType>emptySet(), null, true);
+  }
+
+  /**
+   * @return this subscription, limited to the updates of the merchants.
+   */
+  public Subscription forMerchants(Set<String> merchantIds) {
+    return new Subscription(objectTypes, updateTypes, Collections.unmodifiableSet(new HashSet<String>(merchantIds)),
+        verificationCodes);
+  }
+
+  /**
+   * @return this subscription, with verification codes as well.
+   */
+  public Subscription withVerificationCodes() {
+    return new Subscription(objectTypes, updateTypes, merchantIds, true);
+  }
+
+  /**
+   * @return the object types subscribed to, or null for every type, including unknown ones.
+   */
+  public Set<WebHookMessage.ObjectType> getObjectTypes() {
+    return objectTypes;
+  }
+
+  /**
+   * @return the update types subscribed to, or null for every type, including unknown ones.
+   */
+  public Set<WebHookMessage.UpdateType> getUpdateTypes() {
+    return updateTypes;
+  }
+
+  /**
+   * @return the merchants subscribed to, or null for every merchant.
+   */
+  public Set<String> getMerchantIds() {
+    return merchantIds;
+  }
+
+  /**
+   * @return true if messages with a verification code are wanted.
+   */
+  public boolean isVerificationCodes() {
+    return verificationCodes;
+  }
+
+  /**
+   * @return true if this is every message, so the handler can be given the message as it was received.
+   */
+  public boolean isAll() {
+    return objectTypes == null && updateTypes == null && merchantIds == null && verificationCodes;
+  }
+
+  /**
+   * @return true if an update of the merchant is part of this subscription.
+   */
+  public boolean matches(String merchantId, WebHookMessage.Update update) {
+    return (objectTypes == null || (update.getObjectType() != null && objectTypes.contains(update.getObjectType())))
+        && (updateTypes == null || (update.getType() != null && updateTypes.contains(update.getType())))
+        && (merchantIds == null || merchantIds.contains(merchantId));
+  }
+
+  public String toString() {
+    return "Subscription{objectTypes=" + objectTypes + ", updateTypes=" + updateTypes + ", merchantIds="
+        + merchantIds + ", verificationCodes=" + verificationCodes + "}";
+  }
+
+  private static <E extends Enum<E>> Set<E> copyOf(Set<E> values, Class<E> type) {
+    return values.isEmpty() ? EnumSet.noneOf(type) : EnumSet.copyOf(values);
+  }
+}
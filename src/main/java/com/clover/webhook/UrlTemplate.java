@@ -0,0 +1,139 @@
+package com.clover.webhook;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A url template that has been split once into literal segments and variable slots, so that building a url
+ * is a single pass into a pre-sized StringBuilder rather than a regex replacement per variable.
+ *
+ * Variables in the template are wrapped with braces {}.  Variables whose values never change (the server)
+ * are folded into the literal segments when the template is compiled; the rest are filled in, url encoded,
+ * from the arguments passed to expand.
+ */
+public class UrlTemplate {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  /**
+   * literals[i] comes before the value of slot i, the last literal comes after the last slot.
+   */
+  private final String[] literals;
+  /**
+   * The index of the expand argument used to fill each slot.
+   */
+  private final int[] slotArguments;
+  private final int literalLength;
+
+  private UrlTemplate(String[] literals, int[] slotArguments) {
+    this.literals = literals;
+    this.slotArguments = slotArguments;
+    int length = 0;
+    for (String literal : literals) {
+      length += literal.length();
+    }
+    this.literalLength = length;
+  }
+
+  /**
+   * Compiles a template.
+   *
+   * @param template a template string that has some number of replacement variables denoted by braces
+   * @param constants values for variables that are the same for every url, these are not encoded
+   * @param argumentNames the names of the variables that are passed, in order, to expand.  If a name is
+   *                      repeated, the later argument is used.
+   * @return the compiled template
+   * @throws IllegalArgumentException if the template has a variable that is neither a constant nor an argument
+   */
+  public static UrlTemplate compile(String template, Map<String, String> constants, String... argumentNames) {
+    List<String> literals = new ArrayList<String>();
+    List<Integer> slotArguments = new ArrayList<Integer>();
+    StringBuilder literal = new StringBuilder();
+    int index = 0;
+    while (index < template.length()) {
+      int open = template.indexOf('{', index);
+      int close = open < 0 ? -1 : template.indexOf('}', open);
+      if (close < 0) {
+        literal.append(template, index, template.length());
+        break;
+      }
+      literal.append(template, index, open);
+      String name = template.substring(open + 1, close);
+      int argument = lastIndexOf(argumentNames, name);
+      if (argument >= 0) {
+        literals.add(literal.toString());
+        literal.setLength(0);
+        slotArguments.add(argument);
+      } else if (constants.containsKey(name)) {
+        literal.append(constants.get(name));
+      } else {
+        throw new IllegalArgumentException("No value for {" + name + "} in " + template);
+      }
+      index = close + 1;
+    }
+    literals.add(literal.toString());
+
+    int[] slots = new int[slotArguments.size()];
+    for (int i = 0; i < slots.length; i++) {
+      slots[i] = slotArguments.get(i);
+    }
+    return new UrlTemplate(literals.toArray(new String[literals.size()]), slots);
+  }
+
+  /**
+   * Builds a url from the template.
+   *
+   * @param arguments the values of the variables named when the template was compiled
+   * @return the url
+   */
+  public String expand(String... arguments) {
+    int length = literalLength;
+    for (int argument : slotArguments) {
+      length += arguments[argument].length();
+    }
+    StringBuilder url = new StringBuilder(length);
+    for (int i = 0; i < slotArguments.length; i++) {
+      url.append(literals[i]);
+      appendEncoded(url, arguments[slotArguments[i]]);
+    }
+    url.append(literals[slotArguments.length]);
+    return url.toString();
+  }
+
+  /**
+   * Percent encodes everything but the unreserved characters from RFC 3986.  Clover ids and tokens
+   * are normally all unreserved, so they are appended as is.
+   */
+  static void appendEncoded(StringBuilder url, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      if (!isUnreserved(value.charAt(i))) {
+        for (byte b : value.substring(i).getBytes(UTF_8)) {
+          if (isUnreserved((char) b)) {
+            url.append((char) b);
+          } else {
+            url.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+          }
+        }
+        return;
+      }
+      url.append(value.charAt(i));
+    }
+  }
+
+  private static boolean isUnreserved(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+        || c == '-' || c == '.' || c == '_' || c == '~';
+  }
+
+  private static int lastIndexOf(String[] names, String name) {
+    for (int i = names.length - 1; i >= 0; i--) {
+      if (names[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -1,6 +1,7 @@
 package com.clover.webhook;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 
 
 
@@ -8,13 +9,22 @@ import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 /**
  * Simple example of receiving web hook messages from Clover.
@@ -24,12 +34,108 @@ import java.util.Map;
  */
 public class WebHook extends javax.servlet.http.HttpServlet {
 
+  /**
+   * The servlet context attribute the initialized WebHook is stored under.
+   */
+  static final String CONTEXT_ATTRIBUTE = WebHook.class.getName();
+
   private Gson gson = new Gson();
 
+  /*
+   * Metrics for receiving and dispatching messages, see Metrics and the MetricsServlet.
+   */
+  private static final Metrics.Histogram PARSE_TIME = Metrics.histogram("webhook_parse_seconds");
+  private static final Metrics.Histogram DISPATCH_TIME = Metrics.histogram("webhook_dispatch_seconds");
+  private static final Metrics.Counter ACCEPTED = Metrics.counter("webhook_requests_total", "result", "accepted");
+  private static final Metrics.Counter BAD_REQUESTS = Metrics.counter("webhook_requests_total", "result", "bad_request");
+  private static final Metrics.Counter TOO_LARGE = Metrics.counter("webhook_requests_total", "result", "too_large");
+  private static final Metrics.Counter UNAVAILABLE = Metrics.counter("webhook_requests_total", "result", "unavailable");
+  private static final Map<PriorityLane, Metrics.Counter> SHED =
+      new EnumMap<PriorityLane, Metrics.Counter>(PriorityLane.class);
+
+  static {
+    for (PriorityLane lane : PriorityLane.values()) {
+      SHED.put(lane, Metrics.counter("webhook_shed_total", "lane", lane.name()));
+    }
+  }
+
+  /**
+   * The handlers for web hook messages and the updates each of them subscribed to.  Messages are handled by worker
+   * threads while listeners may still be added or removed, so a new table replaces this one for each change.
+   */
+  private volatile HandlerRoutes routes = HandlerRoutes.EMPTY;
+
+  /**
+   * When handler bulkheads are enabled, each handler runs on its own bounded pool of threads and the
+   * handlers of a message run concurrently.  Null when handlers are run one after another on the calling thread.
+   */
+  private Map<WebHookMessageHandler, HandlerBulkhead> bulkheads;
+
+  /**
+   * When async ingestion is enabled, messages are queued here and handled by worker threads after
+   * the request has been acknowledged.  Null when messages are handled on the request thread.
+   */
+  private WebHookWorkQueue workQueue;
+
+  /**
+   * The service used by the DetailedWebHookMessageHandler to look up access tokens.
+   */
+  private AccessTokenService accessTokenService;
+
+  /**
+   * Drops the updates that were already handled before a message is dispatched, or null if every update is
+   * dispatched.
+   */
+  private IdempotencyFilter idempotencyFilter;
+
+  /**
+   * Remembers the merchants the accessTokenService has no token for, in front of it.
+   */
+  private NegativeCachingAccessTokenService negativeAccessTokenCache;
+
   /**
-   * A set of handlers for web hook messages.
+   * The client used by the DetailedWebHookMessageHandler for its rest calls.
    */
-  private HashSet<WebHookMessageHandler> messageHandlers = new HashSet<WebHookMessageHandler>();
+  private RestClient restClient;
+
+  /**
+   * The stripes the DetailedWebHookMessageHandler handles merchants on, or null if it handles them on the
+   * calling thread.
+   */
+  private StripedExecutor merchantStripes;
+
+  /**
+   * The timer that starts the hedged rest calls of the DetailedWebHookMessageHandler, or null if they are not hedged.
+   */
+  private ScheduledExecutorService hedgeTimer;
+
+  /**
+   * The largest request body that will be read, or zero for no limit.
+   */
+  private long maxPayloadBytes;
+
+  /**
+   * True if the work queue has a lane for each PriorityLane, and messages are queued in the lane of their most
+   * urgent update.
+   */
+  private boolean priorityLanes;
+
+  /**
+   * The Retry-After sent with a 503 when the queue is full, or zero to send none.
+   */
+  private int retryAfterSeconds;
+
+  /**
+   * When journaling is enabled, every accepted message is written here before it is handled, and acknowledged
+   * once it has been.  Null when messages are not journaled.
+   */
+  private WebHookJournal journal;
+
+  /**
+   * The journal sequence of each message that is being handled, by identity, so it can be acknowledged afterwards.
+   */
+  private final Map<WebHookMessage, Long> journalSequences =
+      Collections.synchronizedMap(new IdentityHashMap<WebHookMessage, Long>());
 
   /**
    * Creates the hook with a simple handler that echoes the messages  received.
@@ -55,7 +161,44 @@ public class WebHook extends javax.servlet.http.HttpServlet {
    *
    *  Once these values are obtained, a DetailedWebHookMessageHandler is created using the values for the server,
    *  and a new FileAccessTokenService that is built using the file pointed to by the values for
-   *  "accessTokenDirectoryEnvVar" and "accessTokenFileName"
+   *  "accessTokenDirectoryEnvVar" and "accessTokenFileName", stored as "accessTokenStore" ("json" or "log", see
+   *  FileStore#create).  If "accessTokenIndexFileName" is set, tokens are read instead from that binary index in
+   *  the same directory, see MappedAccessTokenService.  Up to "accessTokenNegativeCacheSize" merchants without a
+   *  token are remembered for "accessTokenNegativeCacheTtlSeconds", or until a token is saved for them or the tokens
+   *  are reloaded, see NegativeCachingAccessTokenService.  Its rest calls are made on "restThreads" threads,
+   *  with at most "restMaxConnectionsPerHost" calls in flight to the server.  If "detailCacheSize" is more than
+   *  zero, up to that many fetched objects are cached for "detailCacheTtlSeconds".  If "merchantStripes" is more
+   *  than zero, merchants are handled in parallel on that many stripes, keeping the updates of each merchant in order.
+   *  Up to "maxBatchSize" customers, items, orders or payments of a merchant are fetched with one list call.
+   *  Calls time out after "restConnectTimeoutMillis" and "restReadTimeoutMillis".  If "restHedgePercentile" is more
+   *  than zero, a call slower than that percentile is made a second time, see
+   *  DetailedWebHookMessageHandler#setHedging, and if "circuitBreakerFailures" is more than zero the calls of an
+   *  object type fail fast for "circuitBreakerOpenMillis" after that many failures in a row.
+   *
+   *  If the "asyncIngestion" init parameter is true, messages are acknowledged as soon as they are parsed and
+   *  queued.  The queue is sized by "asyncQueueSize", and drained by "asyncWorkerCount" threads, which are
+   *  virtual threads if "asyncUseVirtualThreads" is true and the runtime supports them.
+   *  If "priorityLanes" is true the queue has a lane for each PriorityLane, sized by "<LANE>.laneQueueSize"
+   *  (asyncQueueSize by default) and drained by "<LANE>.laneWeight", so a flood of inventory updates fills only its
+   *  own lane and cannot hold up verification codes, app and merchant updates.  A message that finds its lane
+   *  full gets a 503, with a Retry-After of "retryAfterSeconds" if that is more than zero.
+   *
+   *  "maxPayloadBytes" limits the size of the request body, zero or unset means no limit.
+   *
+   *  If "idempotencyWindowSeconds" is more than zero, updates that were already handled in that window, or that are
+   *  older than the latest update handled for their object, are dropped before dispatch, remembering up to
+   *  "idempotencyMaxEntries" updates, see IdempotencyFilter.
+   *
+   *  If "journalDirectoryName" is set, messages are written to a journal in that directory (under the
+   *  accessTokenDirectoryEnvVar directory) before they are acknowledged, and the messages that were never handled
+   *  are replayed here.  Journal segments are rolled over at "journalSegmentBytes", see WebHookJournal.
+   *
+   *  If "handlerBulkheads" is true, each handler gets its own pool of "handlerThreads" threads with a queue of
+   *  "handlerQueueDepth" messages.  "handlerTimeoutMillis" is how long a message is given before the handler is
+   *  interrupted, and "handlerRejectionPolicy" (DROP, DROP_OLDEST or CALLER_RUNS) decides what happens when the
+   *  queue is full.  Each of these can be set for a single handler by prefixing the parameter name with the
+   *  handler's simple class name, for example "DetailedWebHookMessageHandler.handlerTimeoutMillis".  Messages are
+   *  handed to the bulkheads without waiting, and acknowledged in the journal once every handler is done with them.
    *
    * @param config
    * @throws ServletException
@@ -63,6 +206,13 @@ public class WebHook extends javax.servlet.http.HttpServlet {
   public void init(ServletConfig config)
       throws ServletException {
     super.init(config);
+    if (Boolean.parseBoolean(config.getInitParameter("handlerBulkheads"))) {
+      bulkheads = new ConcurrentHashMap<WebHookMessageHandler, HandlerBulkhead>();
+      for (WebHookMessageHandler handler : routes.getHandlers()) {
+        bulkheads.put(handler, createBulkhead(handler));
+      }
+    }
+
     String cloverServer = config.getInitParameter("cloverServer");
     String accessTokenDirectoryEnvVar = config.getInitParameter("accessTokenDirectoryEnvVar"); // OPENSHIFT_DATA_DIR
     String accessTokenFileName = config.getInitParameter("accessTokenFileName");
@@ -70,36 +220,463 @@ public class WebHook extends javax.servlet.http.HttpServlet {
 
     File accessTokenFile = new File(fileName);
 
-    AccessTokenService accessTokenService = new FileAccessTokenService(accessTokenFile);
+    String accessTokenIndexFileName = config.getInitParameter("accessTokenIndexFileName");
+    if (accessTokenIndexFileName != null && !accessTokenIndexFileName.trim().isEmpty()) {
+      File indexFile = new File(System.getenv().get(accessTokenDirectoryEnvVar) + accessTokenIndexFileName.trim());
+      try {
+        accessTokenService = new MappedAccessTokenService(indexFile);
+      } catch (IOException e) {
+        throw new ServletException("Unable to map the access token index " + indexFile.getAbsolutePath(), e);
+      }
+    } else {
+      accessTokenService = new FileAccessTokenService(
+          FileStore.create(accessTokenFile.getAbsoluteFile(), config.getInitParameter("accessTokenStore")), 250);
+    }
+    negativeAccessTokenCache = new NegativeCachingAccessTokenService(accessTokenService,
+        getIntInitParameter(config, "accessTokenNegativeCacheSize", 0),
+        getIntInitParameter(config, "accessTokenNegativeCacheTtlSeconds", 300) * 1000L);
+    Runnable invalidateAll = new Runnable() {
+      public void run() {
+        negativeAccessTokenCache.invalidateAll();
+      }
+    };
+    if (accessTokenService instanceof FileAccessTokenService) {
+      ((FileAccessTokenService) accessTokenService).addReloadListener(invalidateAll);
+    } else if (accessTokenService instanceof MappedAccessTokenService) {
+      ((MappedAccessTokenService) accessTokenService).addReloadListener(invalidateAll);
+    }
+
+    int restMaxConnectionsPerHost = getIntInitParameter(config, "restMaxConnectionsPerHost", 8);
+    restClient = new PooledRestClient(getIntInitParameter(config, "restThreads", 16), restMaxConnectionsPerHost,
+        getIntInitParameter(config, "restConnectTimeoutMillis", 5000),
+        getIntInitParameter(config, "restReadTimeoutMillis", 15000));
+    if (Boolean.parseBoolean(config.getInitParameter("restAdaptiveLimits"))) {
+      restClient = new AdaptiveRestClient(restClient, restMaxConnectionsPerHost,
+          getIntInitParameter(config, "restMerchantMaxConcurrency", 4),
+          getIntInitParameter(config, "restMaxRetries", 3),
+          getIntInitParameter(config, "restRetryBaseMillis", 250),
+          getIntInitParameter(config, "restRetryMaxMillis", 30000));
+    }
+
+    int detailCacheSize = getIntInitParameter(config, "detailCacheSize", 0);
+    ObjectDetailCache detailCache = detailCacheSize <= 0 ? null :
+        new ObjectDetailCache(detailCacheSize, getIntInitParameter(config, "detailCacheTtlSeconds", 300) * 1000L);
+
+    int stripeCount = getIntInitParameter(config, "merchantStripes", 0);
+    if (stripeCount > 0) {
+      merchantStripes = new StripedExecutor(stripeCount, "merchant-stripe");
+    }
 
     DetailedWebHookMessageHandler detailedWebHookMessageHandler =
-        new DetailedWebHookMessageHandler(cloverServer, accessTokenService);
+        new DetailedWebHookMessageHandler(cloverServer, negativeAccessTokenCache, restClient, detailCache,
+            merchantStripes);
+    detailedWebHookMessageHandler.setMaxBatchSize(getIntInitParameter(config, "maxBatchSize", 1));
+    int hedgePercentile = getIntInitParameter(config, "restHedgePercentile", 0);
+    if (hedgePercentile > 0) {
+      hedgeTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "rest-hedge");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      detailedWebHookMessageHandler.setHedging(hedgeTimer, hedgePercentile / 100.0,
+          getIntInitParameter(config, "restHedgeMinDelayMillis", 50));
+    }
+    detailedWebHookMessageHandler.setCircuitBreakers(getIntInitParameter(config, "circuitBreakerFailures", 0),
+        getIntInitParameter(config, "circuitBreakerOpenMillis", 10000));
     addListener(detailedWebHookMessageHandler);
+
+    maxPayloadBytes = getIntInitParameter(config, "maxPayloadBytes", 0);
+
+    int idempotencyWindowSeconds = getIntInitParameter(config, "idempotencyWindowSeconds", 0);
+    if (idempotencyWindowSeconds > 0) {
+      idempotencyFilter = new IdempotencyFilter(idempotencyWindowSeconds * 1000L,
+          getIntInitParameter(config, "idempotencyMaxEntries", 100000));
+    }
+
+    if (Boolean.parseBoolean(config.getInitParameter("asyncIngestion"))) {
+      int queueSize = getIntInitParameter(config, "asyncQueueSize", 1000);
+      int workerCount = getIntInitParameter(config, "asyncWorkerCount", 4);
+      boolean useVirtualThreads = Boolean.parseBoolean(config.getInitParameter("asyncUseVirtualThreads"));
+      WebHookMessageHandler target = new WebHookMessageHandler() {
+        public void handleEvent(WebHookMessage webHookEvent) {
+          handleJournaledEvent(webHookEvent);
+        }
+      };
+      if (Boolean.parseBoolean(config.getInitParameter("priorityLanes"))) {
+        PriorityLane[] lanes = PriorityLane.values();
+        int[] laneSizes = new int[lanes.length];
+        int[] laneWeights = new int[lanes.length];
+        for (PriorityLane lane : lanes) {
+          laneSizes[lane.ordinal()] = getIntInitParameter(config, lane.name() + ".laneQueueSize", queueSize);
+          laneWeights[lane.ordinal()] = getIntInitParameter(config, lane.name() + ".laneWeight",
+              lane.getDefaultWeight());
+        }
+        workQueue = new WebHookWorkQueue(laneSizes, laneWeights, workerCount, useVirtualThreads, target);
+        priorityLanes = true;
+      } else {
+        workQueue = new WebHookWorkQueue(queueSize, workerCount, useVirtualThreads, target);
+      }
+    }
+    retryAfterSeconds = getIntInitParameter(config, "retryAfterSeconds", 0);
+
+    String journalDirectoryName = config.getInitParameter("journalDirectoryName");
+    if (journalDirectoryName != null && !journalDirectoryName.trim().isEmpty()) {
+      File journalDirectory = new File(System.getenv().get(accessTokenDirectoryEnvVar) + journalDirectoryName.trim());
+      try {
+        journal = new WebHookJournal(journalDirectory.getAbsoluteFile(),
+            getIntInitParameter(config, "journalSegmentBytes", 16 * 1024 * 1024),
+            getIntInitParameter(config, "journalMaxBatch", 256));
+      } catch (IOException e) {
+        throw new ServletException("Unable to open the webhook journal " + journalDirectory.getAbsolutePath(), e);
+      }
+      replayJournal();
+    }
+
+    registerGauges(detailCache);
+    // Lets the BulkWebHook servlet send its messages down the same pipeline, and SaveAuth tell the cache of
+    // merchants without a token about the tokens it saves.
+    getServletContext().setAttribute(CONTEXT_ATTRIBUTE, this);
+    getServletContext().setAttribute(NegativeCachingAccessTokenService.CONTEXT_ATTRIBUTE, negativeAccessTokenCache);
   }
 
   /**
+   * Registers the gauges for the queues and the cache, see Metrics.
+   */
+  private void registerGauges(final ObjectDetailCache detailCache) {
+    if (workQueue != null) {
+      Metrics.gauge("webhook_work_queue_depth", new Metrics.Gauge() {
+        public long get() {
+          return workQueue.size();
+        }
+      });
+      if (priorityLanes) {
+        for (final PriorityLane lane : PriorityLane.values()) {
+          Metrics.gauge("webhook_lane_queue_depth", new Metrics.Gauge() {
+            public long get() {
+              return workQueue.size(lane.ordinal());
+            }
+          }, "lane", lane.name());
+        }
+      }
+    }
+    if (journal != null) {
+      Metrics.gauge("webhook_journal_pending_writes", new Metrics.Gauge() {
+        public long get() {
+          return journal.getPendingWrites();
+        }
+      });
+    }
+    if (merchantStripes != null) {
+      for (int i = 0; i < merchantStripes.getStripeCount(); i++) {
+        final int stripe = i;
+        String label = Integer.toString(stripe);
+        Metrics.gauge("webhook_merchant_stripe_queue_depth", new Metrics.Gauge() {
+          public long get() {
+            return merchantStripes.getQueueDepth(stripe);
+          }
+        }, "stripe", label);
+        Metrics.gauge("webhook_merchant_stripe_max_queue_depth", new Metrics.Gauge() {
+          public long get() {
+            return merchantStripes.getMaxQueueDepth(stripe);
+          }
+        }, "stripe", label);
+        Metrics.gauge("webhook_merchant_stripe_completed", new Metrics.Gauge() {
+          public long get() {
+            return merchantStripes.getCompletedCount(stripe);
+          }
+        }, "stripe", label);
+      }
+    }
+    if (idempotencyFilter != null) {
+      Metrics.gauge("webhook_idempotency_entries", new Metrics.Gauge() {
+        public long get() {
+          return idempotencyFilter.size();
+        }
+      });
+    }
+    Metrics.gauge("webhook_access_token_negative_cache_size", new Metrics.Gauge() {
+      public long get() {
+        return negativeAccessTokenCache.size();
+      }
+    });
+    if (detailCache != null) {
+      Metrics.gauge("webhook_detail_cache_size", new Metrics.Gauge() {
+        public long get() {
+          return detailCache.size();
+        }
+      });
+      Metrics.gauge("webhook_detail_cache_hits", new Metrics.Gauge() {
+        public long get() {
+          return detailCache.getHitCount();
+        }
+      });
+      Metrics.gauge("webhook_detail_cache_misses", new Metrics.Gauge() {
+        public long get() {
+          return detailCache.getMissCount();
+        }
+      });
+      Metrics.gauge("webhook_detail_cache_evictions", new Metrics.Gauge() {
+        public long get() {
+          return detailCache.getEvictionCount();
+        }
+      });
+    }
+  }
+
+  /**
+   * Registers the gauges for a handler's bulkhead, labelled with the handler's simple class name.
+   */
+  private static void registerGauges(final HandlerBulkhead bulkhead) {
+    String handler = bulkhead.getHandler().getClass().getSimpleName();
+    Metrics.gauge("webhook_handler_queue_depth", new Metrics.Gauge() {
+      public long get() {
+        return bulkhead.getQueueDepth();
+      }
+    }, "handler", handler);
+    Metrics.gauge("webhook_handler_rejected", new Metrics.Gauge() {
+      public long get() {
+        return bulkhead.getRejectedCount();
+      }
+    }, "handler", handler);
+    Metrics.gauge("webhook_handler_timed_out", new Metrics.Gauge() {
+      public long get() {
+        return bulkhead.getTimedOutCount();
+      }
+    }, "handler", handler);
+    Metrics.gauge("webhook_handler_failed", new Metrics.Gauge() {
+      public long get() {
+        return bulkhead.getFailedCount();
+      }
+    }, "handler", handler);
+  }
+
+  /**
+   * Handles the messages that were journaled but never handled before the last shutdown, in the order they
+   * were received.  They are queued when async ingestion is enabled, and handled here otherwise.
+   */
+  private void replayJournal() {
+    for (WebHookJournal.Entry entry : journal.getRecovered()) {
+      WebHookMessage webHookEvent;
+      try {
+        webHookEvent = JsonPayloads.read(gson, entry.getPayload(), WebHookMessage.class);
+      } catch (JsonParseException e) {
+        e.printStackTrace();
+        webHookEvent = null;
+      }
+      if (webHookEvent == null) {
+        journal.acknowledge(entry.getSequence());
+        continue;
+      }
+      journalSequences.put(webHookEvent, entry.getSequence());
+      int lane = priorityLanes ? PriorityLane.classify(webHookEvent).ordinal() : 0;
+      if (workQueue == null || !workQueue.offer(webHookEvent, lane)) {
+        handleJournaledEvent(webHookEvent);
+      }
+    }
+  }
+
+  /**
+   * Sends the event to the listeners, then acknowledges it in the journal if it was journaled, once every listener
+   * is done with it.  It is acknowledged even if a listener throws: the failure is reported to the caller, and
+   * replaying the message after a restart would most likely fail the same way.
+   */
+  private void handleJournaledEvent(final WebHookMessage webHookEvent) {
+    boolean dispatched = false;
+    try {
+      dispatch(webHookEvent).whenComplete(new BiConsumer<Void, Throwable>() {
+        public void accept(Void ignored, Throwable failure) {
+          acknowledge(webHookEvent);
+        }
+      });
+      dispatched = true;
+    } finally {
+      if (!dispatched) {
+        acknowledge(webHookEvent);
+      }
+    }
+  }
+
+  /**
+   * Acknowledges the event in the journal, if it was journaled.
+   */
+  private void acknowledge(WebHookMessage webHookEvent) {
+    Long sequence = journalSequences.remove(webHookEvent);
+    if (sequence != null && journal != null) {
+      journal.acknowledge(sequence);
+    }
+  }
+
+  /**
+   * Stops the async workers, giving them a chance to finish the messages that were already accepted.
+   */
+  public void destroy() {
+    getServletContext().removeAttribute(CONTEXT_ATTRIBUTE);
+    getServletContext().removeAttribute(NegativeCachingAccessTokenService.CONTEXT_ATTRIBUTE);
+    Metrics.removeGauges("webhook_");
+    if (workQueue != null) {
+      workQueue.shutdown(30, TimeUnit.SECONDS);
+    }
+    if (journal != null) {
+      // Anything still unacknowledged is replayed on the next start.
+      journal.close();
+    }
+    if (bulkheads != null) {
+      for (HandlerBulkhead bulkhead : bulkheads.values()) {
+        bulkhead.shutdown();
+      }
+    }
+    if (merchantStripes != null) {
+      merchantStripes.shutdown();
+    }
+    if (hedgeTimer != null) {
+      hedgeTimer.shutdownNow();
+    }
+    if (restClient != null) {
+      restClient.shutdown();
+    }
+    if (accessTokenService instanceof FileAccessTokenService) {
+      ((FileAccessTokenService) accessTokenService).shutdown();
+    } else if (accessTokenService instanceof MappedAccessTokenService) {
+      ((MappedAccessTokenService) accessTokenService).shutdown();
+    }
+    super.destroy();
+  }
+
+  /**
+   * @return the integer value of the init parameter, or the default if it is not set.
+   */
+  static int getIntInitParameter(ServletConfig config, String name, int defaultValue) {
+    String value = config.getInitParameter(name);
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    return Integer.parseInt(value.trim());
+  }
+
+  /**
+   * Builds the bulkhead for a handler from the init parameters, preferring the ones prefixed with the
+   * handler's simple class name.
+   */
+  private HandlerBulkhead createBulkhead(WebHookMessageHandler handler) {
+    ServletConfig config = getServletConfig();
+    String prefix = handler.getClass().getSimpleName() + ".";
+    int threads = getIntInitParameter(config, prefix + "handlerThreads",
+        getIntInitParameter(config, "handlerThreads", 1));
+    int queueDepth = getIntInitParameter(config, prefix + "handlerQueueDepth",
+        getIntInitParameter(config, "handlerQueueDepth", 100));
+    int timeoutMillis = getIntInitParameter(config, prefix + "handlerTimeoutMillis",
+        getIntInitParameter(config, "handlerTimeoutMillis", 30000));
+    String rejectionPolicy = config.getInitParameter(prefix + "handlerRejectionPolicy");
+    if (rejectionPolicy == null) {
+      rejectionPolicy = config.getInitParameter("handlerRejectionPolicy");
+    }
+    HandlerBulkhead bulkhead = new HandlerBulkhead(handler, threads, queueDepth, timeoutMillis, rejectionPolicy == null ?
+        HandlerBulkhead.RejectionPolicy.DROP : HandlerBulkhead.RejectionPolicy.valueOf(rejectionPolicy.trim()));
+    registerGauges(bulkhead);
+    return bulkhead;
+  }
+
+  /**
+   * Adds a listener, which is only given the updates of its subscription from then on.
    *
    * @param handler a listener
    */
-  public void addListener(WebHookMessageHandler handler) {
-    messageHandlers.add(handler);
+  public synchronized void addListener(WebHookMessageHandler handler) {
+    if (routes.contains(handler)) {
+      return;
+    }
+    Subscription subscription = handler.getSubscription();
+    if (bulkheads != null) {
+      bulkheads.put(handler, createBulkhead(handler));
+    }
+    routes = routes.with(handler, subscription == null ? Subscription.ALL : subscription);
   }
 
   /**
    *
    * @param handler a listener
    */
-  public void removeListener(WebHookMessageHandler handler) {
-    messageHandlers.remove(handler);
+  public synchronized void removeListener(WebHookMessageHandler handler) {
+    routes = routes.without(handler);
+    if (bulkheads != null) {
+      HandlerBulkhead bulkhead = bulkheads.remove(handler);
+      if (bulkhead != null) {
+        bulkhead.shutdown();
+        String handlerName = handler.getClass().getSimpleName();
+        for (String gauge : new String[]{"webhook_handler_queue_depth", "webhook_handler_rejected",
+            "webhook_handler_timed_out", "webhook_handler_failed"}) {
+          Metrics.removeGauge(gauge, "handler", handlerName);
+        }
+      }
+    }
   }
 
   /**
    * Send events to the listeners
+   *
+   * Each listener is given the updates of its subscription, and listeners that subscribed to none of the event
+   * are skipped.  With an idempotency filter, redelivered and stale updates are dropped first, and an event left
+   * with nothing to handle is not dispatched at all.  The updates are only remembered as handled once every handler
+   * has finished without throwing, being dropped or timing out, and without marking them as failed.
+   *
+   * With bulkheads enabled the event is queued for every listener at once and this returns without waiting for
+   * them; a slow listener only fills its own bulkhead.  The updates are remembered once the last of them is done.
+   *
    * @param webHookEvent the event to pass on.
    */
   public void handleEvent(WebHookMessage webHookEvent) {
-    for (WebHookMessageHandler handler : messageHandlers) {
-      handler.handleEvent(webHookEvent);
+    dispatch(webHookEvent);
+  }
+
+  /**
+   * Sends the event to the listeners, see #handleEvent.
+   *
+   * @return a future that completes once every listener is done with the event, which has already happened unless
+   * bulkheads are enabled.
+   */
+  private CompletableFuture<Void> dispatch(WebHookMessage webHookEvent) {
+    long start = System.nanoTime();
+    try {
+      if (idempotencyFilter != null) {
+        webHookEvent = idempotencyFilter.filter(webHookEvent);
+        if (webHookEvent == null) {
+          return CompletableFuture.completedFuture(null);
+        }
+      }
+      List<HandlerRoutes.Delivery> deliveries = routes.route(webHookEvent);
+      if (bulkheads == null) {
+        for (HandlerRoutes.Delivery delivery : deliveries) {
+          delivery.handler.handleEvent(delivery.message);
+        }
+        if (idempotencyFilter != null) {
+          idempotencyFilter.commit(webHookEvent);
+        }
+        return CompletableFuture.completedFuture(null);
+      }
+
+      final List<CompletableFuture<Boolean>> results = new ArrayList<CompletableFuture<Boolean>>();
+      for (HandlerRoutes.Delivery delivery : deliveries) {
+        HandlerBulkhead bulkhead = bulkheads.get(delivery.handler);
+        if (bulkhead != null) {
+          results.add(bulkhead.submit(delivery.message));
+        }
+      }
+      final WebHookMessage handledEvent = webHookEvent;
+      return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[results.size()])).thenRun(new Runnable() {
+        public void run() {
+          boolean handled = true;
+          for (CompletableFuture<Boolean> result : results) {
+            handled &= result.join();
+          }
+          if (handled && idempotencyFilter != null) {
+            idempotencyFilter.commit(handledEvent);
+          }
+        }
+      });
+    } finally {
+      DISPATCH_TIME.recordSince(start);
     }
   }
 
@@ -115,11 +692,18 @@ public class WebHook extends javax.servlet.http.HttpServlet {
   }
 
   /**
-   * Read in the passed content, parse the json content into a WebHookMessage, then call
+   * Parse the json content of the request into a WebHookMessage, then call
    * com.clover.webhook.WebHook#handleEvent(com.clover.webhook.WebHookMessage).
    *
-   * Writes the event to the response stream, which allows the calling system to see the
-   * received message; however, the only requirement for the webhook ids to return 200 on success.
+   * The message is deserialized directly from the request stream.  Nothing is written to the response;
+   * the only requirement for the webhook is to return 200 on success.
+   *
+   * In async mode the message is queued instead of handled, and a 503 is returned if the queue is full so
+   * the message will be redelivered.  A payload that cannot be parsed gets a 400, and one larger than the
+   * "maxPayloadBytes" init parameter gets a 413.
+   *
+   * With a journal, the raw body is written to the journal (and synced to disk) after it has been validated and
+   * before the message is handled or queued; if it cannot be written a 503 is returned.
    *
    *
    * @param request
@@ -128,26 +712,124 @@ public class WebHook extends javax.servlet.http.HttpServlet {
    * @throws IOException
    */
   protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-    String payload = new String();
-    // Read the contents of the raw POST data sent in the request and store it
-    BufferedReader r = request.getReader();
-    String line;
-    while ((line = r.readLine()) != null) {
-      payload = payload.concat(line + "\n");
+    // Web hook messages are sent in json serialized format.  Deserialize the message to a static
+    // type java object.
+    WebHookMessage webHookEvent;
+    byte[] payload = null;
+    long parseStart = System.nanoTime();
+    try {
+      if (journal != null) {
+        payload = JsonPayloads.readBytes(request, maxPayloadBytes);
+        webHookEvent = JsonPayloads.read(gson, payload, WebHookMessage.class);
+      } else {
+        webHookEvent = JsonPayloads.read(gson, request, maxPayloadBytes, WebHookMessage.class);
+      }
+    } catch (JsonPayloads.PayloadTooLargeException e) {
+      TOO_LARGE.increment();
+      response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+      return;
+    } catch (JsonParseException e) {
+      BAD_REQUESTS.increment();
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unable to parse webhook message");
+      return;
+    }
+    PARSE_TIME.recordSince(parseStart);
+    if (webHookEvent == null) {
+      BAD_REQUESTS.increment();
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Empty webhook message");
+      return;
     }
-    r.close();
-    payload = payload.trim();
 
-    System.out.println("The payload was: '" + payload + "'");
+    switch (admit(webHookEvent, payload, 0)) {
+      case JOURNAL_FAILED:
+        UNAVAILABLE.increment();
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Unable to journal webhook message");
+        break;
+      case QUEUE_FULL:
+        UNAVAILABLE.increment();
+        if (retryAfterSeconds > 0) {
+          response.setHeader("Retry-After", Integer.toString(retryAfterSeconds));
+        }
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Webhook queue is full");
+        break;
+      default:
+        ACCEPTED.increment();
+    }
+  }
 
-    // Web hook messages are sent in json serialized format.  Deserialize the message to a static
-    // type java object.
-    WebHookMessage webHookEvent = gson.fromJson(payload, WebHookMessage.class);
-    handleEvent(webHookEvent);
+  /**
+   * What happened to a message passed to #admit.
+   */
+  enum Admission {
+    /**
+     * The message was queued, or handled if there is no queue.
+     */
+    ACCEPTED,
+    /**
+     * The message could not be written to the journal, and was dropped.
+     */
+    JOURNAL_FAILED,
+    /**
+     * The queue stayed full, and the message was dropped.
+     */
+    QUEUE_FULL
+  }
+
+  /**
+   * Sends a parsed message down the pipeline: journals it if journaling is on, then queues it, or handles it on the
+   * calling thread if there is no queue.  A message that is not accepted is not journaled either, so the sender
+   * has to deliver it again.
+   *
+   * @param payload the raw message, which is only needed when journaling is on
+   * @param waitMillis how long to wait for room in the queue, zero not to wait
+   */
+  Admission admit(WebHookMessage webHookEvent, byte[] payload, long waitMillis) {
+    if (journal != null) {
+      try {
+        journalSequences.put(webHookEvent, journal.append(payload));
+      } catch (IOException e) {
+        e.printStackTrace();
+        return Admission.JOURNAL_FAILED;
+      }
+    }
 
-    // Dump the payload to the output stream.  This can help with debugging, but should not be used
-    // in a real implementation.
-    response.getWriter().write("The payload was: '" + payload + "'");
+    if (workQueue == null) {
+      handleJournaledEvent(webHookEvent);
+      return Admission.ACCEPTED;
+    }
+    PriorityLane lane = priorityLanes ? PriorityLane.classify(webHookEvent) : null;
+    int laneIndex = lane == null ? 0 : lane.ordinal();
+    boolean queued;
+    try {
+      queued = waitMillis > 0 ? workQueue.offer(webHookEvent, laneIndex, waitMillis, TimeUnit.MILLISECONDS)
+          : workQueue.offer(webHookEvent, laneIndex);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      queued = false;
+    }
+    if (!queued) {
+      if (lane != null) {
+        SHED.get(lane).increment();
+      }
+      // Not accepted, it will be redelivered.  Acknowledge it so it is not replayed as well.
+      acknowledge(webHookEvent);
+      return Admission.QUEUE_FULL;
+    }
+    return Admission.ACCEPTED;
+  }
+
+  /**
+   * @return true if messages are journaled, so #admit needs their raw payload.
+   */
+  boolean isJournaling() {
+    return journal != null;
+  }
+
+  /**
+   * @return the largest message that will be read, or zero for no limit.
+   */
+  long getMaxPayloadBytes() {
+    return maxPayloadBytes;
   }
 
   /**
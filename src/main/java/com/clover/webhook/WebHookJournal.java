@@ -0,0 +1,411 @@
+package com.clover.webhook;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A write ahead journal of the raw webhook messages that have been received, so that a message that was accepted
+ * but not yet handled when the process stopped is handled when it starts again.
+ *
+ * The journal is a directory of segment files, journal-0000000001.log and so on.  Each record is a 4 byte length,
+ * then an 8 byte sequence number, a 1 byte type (a message, or the acknowledgement of one), the payload, and a CRC32
+ * of the sequence, type and payload.  A single writer thread appends records and fsyncs once for every batch of
+ * messages that arrived while the previous fsync was running (group commit), so many concurrent appends share the
+ * cost of one fsync.
+ *
+ * Acknowledgements are written without waiting for an fsync; if one is lost the message is handled again after a
+ * restart.  A segment is rolled over once it is larger than the segment size, and deleted once every message in it
+ * has been acknowledged and every older segment has been deleted, since it can hold the acknowledgements of
+ * messages in those older segments.
+ *
+ * A batch that fails part way is cut off the end of its segment, so the records written after it can still be
+ * recovered.  Messages larger than MAX_PAYLOAD_BYTES are refused rather than journaled.
+ */
+public class WebHookJournal {
+
+  private static final byte MESSAGE = 1;
+  private static final byte ACK = 2;
+  private static final String PREFIX = "journal-";
+  private static final String SUFFIX = ".log";
+
+  /**
+   * The largest message that can be journaled.  Recovery treats a record that claims to be longer as corrupt.
+   */
+  static final int MAX_PAYLOAD_BYTES = 64 * 1024 * 1024;
+
+  /**
+   * A message recovered from the journal that was never acknowledged.
+   */
+  public static class Entry {
+    private final long sequence;
+    private final byte[] payload;
+
+    Entry(long sequence, byte[] payload) {
+      this.sequence = sequence;
+      this.payload = payload;
+    }
+
+    public long getSequence() {
+      return sequence;
+    }
+
+    public byte[] getPayload() {
+      return payload;
+    }
+  }
+
+  private final File directory;
+  private final long segmentBytes;
+  private final int maxBatch;
+
+  private final BlockingQueue<Write> writes = new LinkedBlockingQueue<Write>();
+  private final List<Entry> recovered = new ArrayList<Entry>();
+  // The following are only used by the writer thread once it has started.
+  private final Map<Long, Segment> outstanding = new HashMap<Long, Segment>();
+  private final Deque<Segment> segments = new ArrayDeque<Segment>();
+  private long nextSequence = 1;
+  private int nextSegmentNumber = 1;
+  private Segment current;
+
+  private final Thread writer;
+  private volatile boolean running = true;
+
+  /**
+   * Opens the journal, recovering the messages that were never acknowledged.  New records always go to a new segment.
+   *
+   * @param directory the journal directory, created if it does not exist
+   * @param segmentBytes the size at which a segment is rolled over
+   * @param maxBatch the most records written for one fsync
+   */
+  public WebHookJournal(File directory, long segmentBytes, int maxBatch) throws IOException {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.maxBatch = maxBatch;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create journal directory " + directory.getAbsolutePath());
+    }
+    recover();
+    current = openSegment();
+
+    writer = new Thread(new Runnable() {
+      public void run() {
+        writeLoop();
+      }
+    }, "webhook-journal");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * @return the messages that were in the journal but never acknowledged when it was opened, oldest first.
+   */
+  public List<Entry> getRecovered() {
+    return recovered;
+  }
+
+  /**
+   * Appends a message, and waits until it is on disk.
+   *
+   * @param payload the raw message
+   * @return the sequence number to acknowledge the message with.
+   * @throws IOException if the message is larger than MAX_PAYLOAD_BYTES, or could not be written
+   */
+  public long append(byte[] payload) throws IOException {
+    if (payload.length > MAX_PAYLOAD_BYTES) {
+      throw new IOException("The message is larger than the journal's limit of " + MAX_PAYLOAD_BYTES + " bytes");
+    }
+    Write write = new Write(MESSAGE, 0, payload);
+    if (!running) {
+      throw new IOException("The journal is closed");
+    }
+    writes.add(write);
+    try {
+      return write.done.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while writing to the journal", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Unable to write to the journal", e.getCause());
+    }
+  }
+
+  /**
+   * Marks a message as handled, so it will not be recovered.  This does not wait for the acknowledgement to be written.
+   */
+  public void acknowledge(long sequence) {
+    if (running) {
+      writes.add(new Write(ACK, sequence, new byte[0]));
+    }
+  }
+
+  /**
+   * @return the number of appends and acknowledgements waiting to be written.
+   */
+  public int getPendingWrites() {
+    return writes.size();
+  }
+
+  /**
+   * Writes anything pending and closes the journal.
+   */
+  public void close() {
+    running = false;
+    try {
+      writer.join(TimeUnit.SECONDS.toMillis(10));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void writeLoop() {
+    List<Write> batch = new ArrayList<Write>();
+    while (running || !writes.isEmpty()) {
+      try {
+        Write first = writes.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        writes.drainTo(batch, maxBatch - 1);
+        writeBatch(batch);
+      } catch (InterruptedException e) {
+        break;
+      } finally {
+        batch.clear();
+      }
+    }
+    try {
+      current.channel.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void writeBatch(List<Write> batch) {
+    boolean hasMessages = false;
+    long batchStart = -1;
+    try {
+      batchStart = current.channel.position();
+      for (Write write : batch) {
+        if (write.type == MESSAGE) {
+          write.sequence = nextSequence++;
+          hasMessages = true;
+        }
+        current.channel.write(encode(write.sequence, write.type, write.payload));
+      }
+      if (hasMessages) {
+        current.channel.force(false);
+      }
+    } catch (IOException e) {
+      discardFrom(batchStart);
+      for (Write write : batch) {
+        write.done.completeExceptionally(e);
+      }
+      return;
+    }
+
+    for (Write write : batch) {
+      if (write.type == MESSAGE) {
+        current.outstanding++;
+        outstanding.put(write.sequence, current);
+      } else {
+        Segment segment = outstanding.remove(write.sequence);
+        if (segment != null) {
+          segment.outstanding--;
+          deleteDoneSegments();
+        }
+      }
+      write.done.complete(write.sequence);
+    }
+
+    try {
+      if (current.channel.size() >= segmentBytes) {
+        current.channel.close();
+        current.sealed = true;
+        deleteDoneSegments();
+        current = openSegment();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Cuts a batch that failed part way off the end of the current segment, so the next batch does not follow a torn
+   * record that recovery would stop at.  If the segment cannot be cut, it is sealed and a new one is started.
+   */
+  private void discardFrom(long batchStart) {
+    try {
+      if (batchStart < 0) {
+        throw new IOException("The position of the failed batch is not known");
+      }
+      current.channel.truncate(batchStart);
+      current.channel.position(batchStart);
+    } catch (IOException e) {
+      e.printStackTrace();
+      try {
+        current.channel.close();
+      } catch (IOException closeFailure) {
+        closeFailure.printStackTrace();
+      }
+      current.sealed = true;
+      deleteDoneSegments();
+      try {
+        current = openSegment();
+      } catch (IOException openFailure) {
+        openFailure.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Deletes the oldest segments for as long as they are sealed and fully acknowledged.  A segment is never deleted
+   * ahead of an older one, as it may hold the acknowledgements that keep that one's messages from being recovered.
+   */
+  private void deleteDoneSegments() {
+    while (!segments.isEmpty()) {
+      Segment oldest = segments.peekFirst();
+      if (!oldest.sealed || oldest.outstanding > 0) {
+        return;
+      }
+      if (!oldest.file.delete()) {
+        System.out.println("Unable to delete journal segment " + oldest.file.getAbsolutePath());
+      }
+      segments.pollFirst();
+    }
+  }
+
+  private Segment openSegment() throws IOException {
+    File file = new File(directory, String.format("%s%010d%s", PREFIX, nextSegmentNumber++, SUFFIX));
+    Segment segment = new Segment(file);
+    segment.channel = new RandomAccessFile(file, "rw").getChannel();
+    segment.channel.position(segment.channel.size());
+    segments.addLast(segment);
+    return segment;
+  }
+
+  private static ByteBuffer encode(long sequence, byte type, byte[] payload) {
+    ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + 1 + payload.length + 4);
+    buffer.putInt(8 + 1 + payload.length);
+    buffer.putLong(sequence);
+    buffer.put(type);
+    buffer.put(payload);
+    CRC32 crc = new CRC32();
+    crc.update(buffer.array(), 4, 8 + 1 + payload.length);
+    buffer.putInt((int) crc.getValue());
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Reads every segment, oldest first, keeping the messages that were never acknowledged.  A segment that ends
+   * with a torn or corrupt record is read up to that record.
+   */
+  private void recover() throws IOException {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files);
+    Map<Long, Entry> unacknowledged = new LinkedHashMap<Long, Entry>();
+    Map<Long, Segment> segmentOf = new HashMap<Long, Segment>();
+    for (File file : files) {
+      String name = file.getName();
+      if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+        continue;
+      }
+      int number = Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+      nextSegmentNumber = Math.max(nextSegmentNumber, number + 1);
+      Segment segment = new Segment(file);
+      segment.sealed = true;
+      segments.add(segment);
+
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        while (true) {
+          int length = in.readInt();
+          if (length < 9 || length > MAX_PAYLOAD_BYTES + 9) {
+            System.out.println("Corrupt record in journal segment " + file.getName() + ", skipping the rest of it");
+            break;
+          }
+          byte[] record = new byte[length];
+          in.readFully(record);
+          int storedCrc = in.readInt();
+          CRC32 crc = new CRC32();
+          crc.update(record);
+          if ((int) crc.getValue() != storedCrc) {
+            System.out.println("Corrupt record in journal segment " + file.getName() + ", skipping the rest of it");
+            break;
+          }
+          ByteBuffer buffer = ByteBuffer.wrap(record);
+          long sequence = buffer.getLong();
+          byte type = buffer.get();
+          if (type == MESSAGE) {
+            unacknowledged.put(sequence, new Entry(sequence, Arrays.copyOfRange(record, 9, record.length)));
+            segmentOf.put(sequence, segment);
+            segment.outstanding++;
+            nextSequence = Math.max(nextSequence, sequence + 1);
+          } else if (unacknowledged.remove(sequence) != null) {
+            segmentOf.remove(sequence).outstanding--;
+          }
+        }
+      } catch (EOFException e) {
+        // The end of the segment, possibly in the middle of a record that was never finished.
+      } finally {
+        in.close();
+      }
+    }
+
+    recovered.addAll(unacknowledged.values());
+    outstanding.putAll(segmentOf);
+    deleteDoneSegments();
+    if (!recovered.isEmpty()) {
+      System.out.println("Recovered " + recovered.size() + " unacknowledged webhook messages from the journal");
+    }
+  }
+
+  private static class Write {
+    final byte type;
+    final byte[] payload;
+    final CompletableFuture<Long> done = new CompletableFuture<Long>();
+    long sequence;
+
+    Write(byte type, long sequence, byte[] payload) {
+      this.type = type;
+      this.sequence = sequence;
+      this.payload = payload;
+    }
+  }
+
+  private static class Segment {
+    final File file;
+    FileChannel channel;
+    int outstanding;
+    boolean sealed;
+
+    Segment(File file) {
+      this.file = file;
+    }
+  }
+}
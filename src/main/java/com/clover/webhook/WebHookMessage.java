@@ -1,13 +1,19 @@
 package com.clover.webhook;
 
+import com.google.gson.annotations.JsonAdapter;
+
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
  * Simple Bean representation of a web hook message
  *
+ * Messages are read and written by WebHookMessageTypeAdapter.
+ *
  * Created by michaelhampton on 8/24/15.
  */
+@JsonAdapter(WebHookMessageTypeAdapter.class)
 public class WebHookMessage {
   private String appId;   //The app ID that the webhook was set up for
   private Map<String, List<Update>> merchants; // Map of [“merchantId” -> List of updates]
@@ -38,25 +44,51 @@ public class WebHookMessage {
     this.merchants = merchants;
   }
 
-  enum ObjectType{
+  public enum ObjectType{
     A, // Apps – When your app is installed, uninstalled, or the subscription is changed.
     C, // Customers – When customers are created or updated.
     I, // Inventory – When inventory items are created, updated, or deleted.
     O, // Orders – When orders are created, updated, or deleted.
     P, // Payments – When payments are created or updated.
-    M  // Merchants – When merchant properties are changed, or new merchants are added.
+    M; // Merchants – When merchant properties are changed, or new merchants are added.
+
+    private static final Map<String, ObjectType> byCode = new HashMap<String, ObjectType>();
+
+    static {
+      for (ObjectType objectType : values()) {
+        byCode.put(objectType.name(), objectType);
+      }
+    }
+
+    /**
+     * @return the object type for the code at the start of an objectId, or null if it is not one we know.
+     */
+    static ObjectType fromCode(String code) {
+      return byCode.get(code);
+    }
   };
 
-  enum UpdateType {
+  public enum UpdateType {
     CREATE,
     UPDATE,
     DELETE
   }
 
+  /**
+   * An update to an object.  The objectId is split into the object type and the id of the object when it is set,
+   * and the timestamp is kept as a number, so handlers do not have to parse them again.
+   *
+   * The format of the objectId is <Key For Event Type>:<Event Object ID>, where the key is one of the ObjectTypes.
+   * @link https://docs.clover.com/build/web-apps/webhooks/?region=dev1
+   */
+  @JsonAdapter(WebHookMessageTypeAdapter.UpdateAdapter.class)
   public static class Update {
     private String objectId; // ObjectType:<Event Object ID>
     private UpdateType type;  // CREATE, UPDATE, or DELETE
-    private String ts;  // The time in milliseconds of the update
+    private long ts = -1;  // The time in milliseconds of the update
+    private ObjectType objectType; // Resolved from the objectId, null if the type is unknown
+    private String eventObjectId; // The <Event Object ID> part of the objectId
+    private volatile boolean failed; // Set by a handler that could not handle the update, never serialized
 
     public String getObjectId() {
       return objectId;
@@ -64,8 +96,33 @@ public class WebHookMessage {
 
     public void setObjectId(String objectId) {
       this.objectId = objectId;
+      int separator = objectId == null ? -1 : objectId.indexOf(':');
+      if (separator < 0) {
+        objectType = null;
+        eventObjectId = null;
+      } else {
+        objectType = ObjectType.fromCode(objectId.substring(0, separator));
+        eventObjectId = objectId.substring(separator + 1);
+      }
     }
 
+    /**
+     * @return the type of the object, or null if the objectId has a type we do not know, or no type at all.
+     */
+    public ObjectType getObjectType() {
+      return objectType;
+    }
+
+    /**
+     * @return the id of the object, the objectId without its type, or null if the objectId has no type.
+     */
+    public String getEventObjectId() {
+      return eventObjectId;
+    }
+
+    /**
+     * @return the update type, or null if it is not one we know.
+     */
     public UpdateType getType() {
       return type;
     }
@@ -74,14 +131,55 @@ public class WebHookMessage {
       this.type = type;
     }
 
+    /**
+     * @return the timestamp as a string, or null if the update has none, see #getTimestamp.
+     */
     public String getTs() {
-      return ts;
+      return ts < 0 ? null : Long.toString(ts);
     }
 
+    /**
+     * Sets the timestamp.  One that is not a number is treated as missing.
+     */
     public void setTs(String ts) {
+      this.ts = parseTimestamp(ts);
+    }
+
+    /**
+     * @return the time of the update in milliseconds, or -1 if it has none.
+     */
+    public long getTimestamp() {
+      return ts;
+    }
+
+    public void setTimestamp(long ts) {
       this.ts = ts;
     }
-  }
-}
 
+    /**
+     * Marks the update as not handled, for a handler that could not handle it, so that it is handled again if the
+     * message is redelivered rather than being dropped as a duplicate, see IdempotencyFilter.
+     */
+    public void markFailed() {
+      failed = true;
+    }
+
+    /**
+     * @return true if a handler could not handle the update.
+     */
+    public boolean isFailed() {
+      return failed;
+    }
 
+    private static long parseTimestamp(String ts) {
+      if (ts == null) {
+        return -1;
+      }
+      try {
+        return Long.parseLong(ts.trim());
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+  }
+}
@@ -8,4 +8,14 @@ package com.clover.webhook;
 
 public interface WebHookMessageHandler {
   void handleEvent(WebHookMessage webHookEvent);
-}
\ No newline at end of file
+
+  /**
+   * The part of each message this handler wants.  It is read once, when the handler is added to the WebHook, and
+   * the handler is then only given the updates that match it, or not called at all for a message with none.
+   *
+   * @return the subscription of this handler, by default every message as it was received.
+   */
+  default Subscription getSubscription() {
+    return Subscription.ALL;
+  }
+}
@@ -0,0 +1,214 @@
+package com.clover.webhook;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reads and writes WebHookMessages with the streaming api, instead of by reflection.
+ *
+ * Each update is decoded once, as it is read: the objectId is split into the object type and the id at the ':'
+ * without a regex, an object type or update type we do not know becomes null instead of failing the message, and the
+ * timestamp is read as a number.  Merchant ids are interned, so the many messages for a merchant share one copy of
+ * its id, as do the caches and executors keyed by it.
+ *
+ * Unknown fields are skipped.
+ */
+class WebHookMessageTypeAdapter extends TypeAdapter<WebHookMessage> {
+
+  /**
+   * Merchant ids are no longer interned once there are this many, to bound the memory held.
+   */
+  private static final int MAX_INTERNED = 100000;
+
+  private static final ConcurrentMap<String, String> merchantIds = new ConcurrentHashMap<String, String>();
+
+  private final UpdateAdapter updateAdapter = new UpdateAdapter();
+
+  public WebHookMessage read(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+    WebHookMessage message = new WebHookMessage();
+    in.beginObject();
+    while (in.hasNext()) {
+      String name = in.nextName();
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+      } else if ("appId".equals(name)) {
+        message.setAppId(in.nextString());
+      } else if ("verificationCode".equals(name)) {
+        message.setVerificationCode(in.nextString());
+      } else if ("merchants".equals(name)) {
+        message.setMerchants(readMerchants(in));
+      } else {
+        in.skipValue();
+      }
+    }
+    in.endObject();
+    return message;
+  }
+
+  private Map<String, List<WebHookMessage.Update>> readMerchants(JsonReader in) throws IOException {
+    Map<String, List<WebHookMessage.Update>> merchants = new LinkedHashMap<String, List<WebHookMessage.Update>>();
+    in.beginObject();
+    while (in.hasNext()) {
+      String merchantId = intern(in.nextName());
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        merchants.put(merchantId, null);
+        continue;
+      }
+      List<WebHookMessage.Update> updates = new ArrayList<WebHookMessage.Update>();
+      in.beginArray();
+      while (in.hasNext()) {
+        updates.add(updateAdapter.read(in));
+      }
+      in.endArray();
+      merchants.put(merchantId, updates);
+    }
+    in.endObject();
+    return merchants;
+  }
+
+  public void write(JsonWriter out, WebHookMessage message) throws IOException {
+    if (message == null) {
+      out.nullValue();
+      return;
+    }
+    out.beginObject();
+    if (message.getAppId() != null) {
+      out.name("appId").value(message.getAppId());
+    }
+    if (message.getVerificationCode() != null) {
+      out.name("verificationCode").value(message.getVerificationCode());
+    }
+    if (message.getMerchants() != null) {
+      out.name("merchants").beginObject();
+      for (Map.Entry<String, List<WebHookMessage.Update>> merchant : message.getMerchants().entrySet()) {
+        out.name(merchant.getKey());
+        if (merchant.getValue() == null) {
+          out.nullValue();
+          continue;
+        }
+        out.beginArray();
+        for (WebHookMessage.Update update : merchant.getValue()) {
+          updateAdapter.write(out, update);
+        }
+        out.endArray();
+      }
+      out.endObject();
+    }
+    out.endObject();
+  }
+
+  /**
+   * @return the shared copy of the merchant id.
+   */
+  static String intern(String merchantId) {
+    String interned = merchantIds.get(merchantId);
+    if (interned != null) {
+      return interned;
+    }
+    if (merchantIds.size() >= MAX_INTERNED) {
+      return merchantId;
+    }
+    interned = merchantIds.putIfAbsent(merchantId, merchantId);
+    return interned != null ? interned : merchantId;
+  }
+
+  /**
+   * Reads and writes a single update.
+   */
+  static class UpdateAdapter extends TypeAdapter<WebHookMessage.Update> {
+
+    public WebHookMessage.Update read(JsonReader in) throws IOException {
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        return null;
+      }
+      WebHookMessage.Update update = new WebHookMessage.Update();
+      in.beginObject();
+      while (in.hasNext()) {
+        String name = in.nextName();
+        if (in.peek() == JsonToken.NULL) {
+          in.nextNull();
+        } else if ("objectId".equals(name)) {
+          update.setObjectId(in.nextString());
+        } else if ("type".equals(name)) {
+          update.setType(updateType(in.nextString()));
+        } else if ("ts".equals(name)) {
+          update.setTimestamp(readTimestamp(in));
+        } else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      return update;
+    }
+
+    public void write(JsonWriter out, WebHookMessage.Update update) throws IOException {
+      if (update == null) {
+        out.nullValue();
+        return;
+      }
+      out.beginObject();
+      if (update.getObjectId() != null) {
+        out.name("objectId").value(update.getObjectId());
+      }
+      if (update.getType() != null) {
+        out.name("type").value(update.getType().name());
+      }
+      if (update.getTimestamp() >= 0) {
+        out.name("ts").value(update.getTimestamp());
+      }
+      out.endObject();
+    }
+
+    private static WebHookMessage.UpdateType updateType(String name) {
+      if ("CREATE".equals(name)) {
+        return WebHookMessage.UpdateType.CREATE;
+      } else if ("UPDATE".equals(name)) {
+        return WebHookMessage.UpdateType.UPDATE;
+      } else if ("DELETE".equals(name)) {
+        return WebHookMessage.UpdateType.DELETE;
+      }
+      return null;
+    }
+
+    /**
+     * Reads a timestamp sent as a number or a string, or -1 if it is neither.
+     */
+    private static long readTimestamp(JsonReader in) throws IOException {
+      JsonToken token = in.peek();
+      if (token == JsonToken.NUMBER) {
+        try {
+          return in.nextLong();
+        } catch (NumberFormatException e) {
+          // Not a whole number, the value is still there to be skipped.
+          in.skipValue();
+          return -1;
+        }
+      }
+      if (token == JsonToken.STRING) {
+        try {
+          return Long.parseLong(in.nextString().trim());
+        } catch (NumberFormatException e) {
+          return -1;
+        }
+      }
+      in.skipValue();
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,322 @@
+package com.clover.webhook;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of webhook messages that is drained by a pool of worker threads.
+ *
+ * This lets the webhook servlet acknowledge a message as soon as it has been parsed and queued,
+ * instead of holding the request open while every handler (and every rest call) completes.
+ *
+ * The queue can be split into lanes, each with its own size, so a flood of messages in one lane cannot fill the
+ * others.  The workers drain the lanes by weight: with weights 6, 3 and 1, out of every 10 messages taken while all
+ * of the lanes have messages waiting, 6 come from the first lane, 3 from the second and 1 from the third, spread
+ * evenly.  A lane that is empty gives its turn to the next one that is not, so no worker waits while there is work.
+ */
+public class WebHookWorkQueue {
+
+  private final List<ArrayDeque<WebHookMessage>> lanes;
+  private final int[] capacities;
+  private final int[] schedule;
+  private int cursor;
+  private int size;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition[] notFull;
+
+  private final WebHookMessageHandler target;
+  private final List<Thread> workers = new ArrayList<Thread>();
+  private volatile boolean running = true;
+
+  /**
+   * Creates the queue with a single lane and starts the workers.
+   *
+   * @param queueSize the maximum number of messages waiting to be handled
+   * @param workerCount the number of threads that drain the queue
+   * @param useVirtualThreads if true, and the runtime supports them, the workers are virtual threads
+   * @param target the handler that each queued message is passed to
+   */
+  public WebHookWorkQueue(int queueSize, int workerCount, boolean useVirtualThreads, WebHookMessageHandler target) {
+    this(new int[]{queueSize}, new int[]{1}, workerCount, useVirtualThreads, target);
+  }
+
+  /**
+   * Creates the queue with lanes and starts the workers.
+   *
+   * @param laneSizes the maximum number of messages waiting in each lane
+   * @param laneWeights the share of the messages taken from each lane while every lane has messages, at least 1
+   * @param workerCount the number of threads that drain the queue
+   * @param useVirtualThreads if true, and the runtime supports them, the workers are virtual threads
+   * @param target the handler that each queued message is passed to
+   */
+  public WebHookWorkQueue(int[] laneSizes, int[] laneWeights, int workerCount, boolean useVirtualThreads,
+                          WebHookMessageHandler target) {
+    this.lanes = new ArrayList<ArrayDeque<WebHookMessage>>(laneSizes.length);
+    this.capacities = laneSizes.clone();
+    this.notFull = new Condition[laneSizes.length];
+    for (int i = 0; i < laneSizes.length; i++) {
+      lanes.add(new ArrayDeque<WebHookMessage>(Math.min(laneSizes[i], 1024)));
+      notFull[i] = lock.newCondition();
+    }
+    this.schedule = schedule(laneWeights);
+    this.target = target;
+
+    ThreadFactory threadFactory = useVirtualThreads ? virtualThreadFactory() : null;
+    if (threadFactory == null) {
+      if (useVirtualThreads) {
+        System.out.println("Virtual threads are not available, using platform threads for webhook workers");
+      }
+      threadFactory = new WorkerThreadFactory();
+    }
+    for (int i = 0; i < workerCount; i++) {
+      Thread worker = threadFactory.newThread(new Worker());
+      workers.add(worker);
+      worker.start();
+    }
+  }
+
+  /**
+   * Spreads the turns of the lanes evenly over one round, so that a heavy lane does not take all of its turns in
+   * a row (smooth weighted round robin).
+   */
+  private static int[] schedule(int[] weights) {
+    int total = 0;
+    for (int weight : weights) {
+      total += Math.max(1, weight);
+    }
+    int[] schedule = new int[total];
+    int[] current = new int[weights.length];
+    for (int turn = 0; turn < total; turn++) {
+      int best = 0;
+      for (int lane = 0; lane < weights.length; lane++) {
+        current[lane] += Math.max(1, weights[lane]);
+        if (current[lane] > current[best]) {
+          best = lane;
+        }
+      }
+      current[best] -= total;
+      schedule[turn] = best;
+    }
+    return schedule;
+  }
+
+  /**
+   * Queue a message for handling in the first lane.
+   *
+   * @param webHookEvent the message
+   * @return false if the queue is full, or the queue has been shut down.
+   */
+  public boolean offer(WebHookMessage webHookEvent) {
+    return offer(webHookEvent, 0);
+  }
+
+  /**
+   * Queue a message for handling in a lane.
+   *
+   * @param webHookEvent the message
+   * @return false if the lane is full, or the queue has been shut down.
+   */
+  public boolean offer(WebHookMessage webHookEvent, int lane) {
+    lock.lock();
+    try {
+      if (!running || lanes.get(lane).size() >= capacities[lane]) {
+        return false;
+      }
+      enqueue(webHookEvent, lane);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Queue a message for handling in the first lane, waiting up to the given time for room.
+   *
+   * @param webHookEvent the message
+   * @return false if the queue stayed full, or the queue has been shut down.
+   */
+  public boolean offer(WebHookMessage webHookEvent, long timeout, TimeUnit unit) throws InterruptedException {
+    return offer(webHookEvent, 0, timeout, unit);
+  }
+
+  /**
+   * Queue a message for handling in a lane, waiting up to the given time for room in the lane.
+   *
+   * @param webHookEvent the message
+   * @return false if the lane stayed full, or the queue has been shut down.
+   */
+  public boolean offer(WebHookMessage webHookEvent, int lane, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    long remaining = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      while (running && lanes.get(lane).size() >= capacities[lane]) {
+        if (remaining <= 0) {
+          return false;
+        }
+        remaining = notFull[lane].awaitNanos(remaining);
+      }
+      if (!running) {
+        return false;
+      }
+      enqueue(webHookEvent, lane);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void enqueue(WebHookMessage webHookEvent, int lane) {
+    lanes.get(lane).add(webHookEvent);
+    size++;
+    notEmpty.signal();
+  }
+
+  /**
+   * Takes the next message, following the schedule of the lanes, waiting up to the given time for one.
+   *
+   * @return the message, or null if there was none.
+   */
+  private WebHookMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long remaining = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      while (size == 0) {
+        if (remaining <= 0) {
+          return null;
+        }
+        remaining = notEmpty.awaitNanos(remaining);
+      }
+      for (int turn = 0; turn < schedule.length; turn++) {
+        int lane = schedule[cursor];
+        cursor = (cursor + 1) % schedule.length;
+        if (!lanes.get(lane).isEmpty()) {
+          size--;
+          notFull[lane].signal();
+          return lanes.get(lane).poll();
+        }
+      }
+      throw new IllegalStateException("No lane has the messages the queue counted");
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of messages waiting to be handled.
+   */
+  public int size() {
+    lock.lock();
+    try {
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of messages waiting in a lane.
+   */
+  public int size(int lane) {
+    lock.lock();
+    try {
+      return lanes.get(lane).size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getLaneCount() {
+    return lanes.size();
+  }
+
+  /**
+   * Stops accepting messages, lets the workers drain what is already queued, and waits up to the
+   * given time for them to finish.
+   */
+  public void shutdown(long timeout, TimeUnit unit) {
+    lock.lock();
+    try {
+      running = false;
+      // Wake anyone waiting for room, they will give up.
+      for (Condition condition : notFull) {
+        condition.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    for (Thread worker : workers) {
+      long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      try {
+        if (remaining > 0) {
+          worker.join(remaining);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    for (Thread worker : workers) {
+      worker.interrupt();
+    }
+  }
+
+  /**
+   * Looks up Thread.ofVirtual().factory() reflectively, so this still builds and runs on runtimes
+   * that do not have virtual threads.
+   *
+   * @return a factory for virtual threads, or null if they are not supported.
+   */
+  private static ThreadFactory virtualThreadFactory() {
+    try {
+      Method ofVirtual = Thread.class.getMethod("ofVirtual");
+      Object builder = ofVirtual.invoke(null);
+      Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+      return (ThreadFactory) factory.invoke(builder);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private class Worker implements Runnable {
+    public void run() {
+      while (running || size() > 0) {
+        WebHookMessage webHookEvent;
+        try {
+          webHookEvent = poll(250, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (webHookEvent != null) {
+          try {
+            target.handleEvent(webHookEvent);
+          } catch (RuntimeException e) {
+            e.printStackTrace();
+          }
+        }
+      }
+    }
+  }
+
+  private static class WorkerThreadFactory implements ThreadFactory {
+    private final ThreadFactory delegate = Executors.defaultThreadFactory();
+    private final AtomicInteger count = new AtomicInteger();
+
+    public Thread newThread(Runnable r) {
+      Thread thread = delegate.newThread(r);
+      thread.setName("webhook-worker-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
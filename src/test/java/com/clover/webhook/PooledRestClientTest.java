@@ -0,0 +1,175 @@
+package com.clover.webhook;
+
+import junit.framework.TestCase;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Tests PooledRestClient against a local Jetty stub of the v3 api.
+ *
+ * The stub answers /v3/merchants/{mId}/orders/{id} with a small json object, gzip encoded when the client accepts
+ * it, after the number of milliseconds in the "delay" parameter.  It keeps track of the most calls it has had in
+ * flight at once.
+ */
+public class PooledRestClientTest extends TestCase {
+
+  private Server server;
+  private int port;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+  private PooledRestClient client;
+
+  protected void setUp() throws Exception {
+    server = new Server();
+    ServerConnector connector = new ServerConnector(server);
+    connector.setPort(0);
+    server.addConnector(connector);
+    server.setHandler(new AbstractHandler() {
+      public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+          throws IOException {
+        int now = inFlight.incrementAndGet();
+        try {
+          int max;
+          while ((max = maxInFlight.get()) < now && !maxInFlight.compareAndSet(max, now)) {
+            // Retry until the most is at least now.
+          }
+          String delay = request.getParameter("delay");
+          if (delay != null) {
+            try {
+              Thread.sleep(Long.parseLong(delay));
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+          baseRequest.setHandled(true);
+          String uri = request.getRequestURI();
+          byte[] body = ("{\"id\":\"" + uri.substring(uri.lastIndexOf('/') + 1) + "\",\"href\":\"" + uri + "\"}")
+              .getBytes("UTF-8");
+          response.setContentType("application/json");
+          String acceptEncoding = request.getHeader("Accept-Encoding");
+          OutputStream out = response.getOutputStream();
+          if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            response.setHeader("Content-Encoding", "gzip");
+            GZIPOutputStream gzip = new GZIPOutputStream(out);
+            gzip.write(body);
+            gzip.finish();
+          } else {
+            out.write(body);
+          }
+        } finally {
+          inFlight.decrementAndGet();
+        }
+      }
+    });
+    server.start();
+    port = connector.getLocalPort();
+  }
+
+  protected void tearDown() throws Exception {
+    if (client != null) {
+      client.shutdown();
+    }
+    server.stop();
+  }
+
+  private String url(String host, String orderId, long delayMillis) {
+    return "http://" + host + ":" + port + "/v3/merchants/MID/orders/" + orderId + "?delay=" + delayMillis;
+  }
+
+  public void testGzipResponseIsKeptCompressedAndDecodedOnRead() throws Exception {
+    client = new PooledRestClient(2, 2, 1000, 5000);
+
+    RestResponse response = client.get(url("localhost", "ORD1", 0)).get(5, TimeUnit.SECONDS);
+
+    assertEquals(200, response.getStatusCode());
+    assertEquals("{\"id\":\"ORD1\",\"href\":\"/v3/merchants/MID/orders/ORD1\"}", response.getBody());
+    // The body is held as the gzip stream, so it is not the size of the json.
+    assertTrue(response.getBodySize() != response.getBody().getBytes("UTF-8").length);
+  }
+
+  public void testCallsToOneHostStayUnderTheLimit() throws Exception {
+    client = new PooledRestClient(8, 2, 1000, 5000);
+
+    List<CompletableFuture<RestResponse>> futures = new ArrayList<CompletableFuture<RestResponse>>();
+    for (int i = 0; i < 8; i++) {
+      futures.add(client.get(url("localhost", "ORD" + i, 100)));
+    }
+    for (CompletableFuture<RestResponse> future : futures) {
+      assertEquals(200, future.get(10, TimeUnit.SECONDS).getStatusCode());
+    }
+
+    assertEquals(2, maxInFlight.get());
+  }
+
+  public void testBusyHostDoesNotHoldUpOtherHosts() throws Exception {
+    client = new PooledRestClient(2, 1, 1000, 5000);
+
+    List<CompletableFuture<RestResponse>> slow = new ArrayList<CompletableFuture<RestResponse>>();
+    for (int i = 0; i < 5; i++) {
+      slow.add(client.get(url("localhost", "SLOW" + i, 300)));
+    }
+    long start = System.nanoTime();
+    RestResponse fast = client.get(url("127.0.0.1", "FAST", 0)).get(5, TimeUnit.SECONDS);
+    long fastMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    assertEquals(200, fast.getStatusCode());
+    // The waiting calls to the slow host queue on that host, not on the pool, so the other host gets a thread.
+    assertTrue("The call to the other host took " + fastMillis + "ms", fastMillis < 300);
+    for (CompletableFuture<RestResponse> future : slow) {
+      assertEquals(200, future.get(10, TimeUnit.SECONDS).getStatusCode());
+    }
+  }
+
+  public void testStalledResponseTimesOut() throws Exception {
+    client = new PooledRestClient(2, 2, 1000, 200);
+
+    try {
+      client.get(url("localhost", "STALL", 2000)).get(5, TimeUnit.SECONDS);
+      fail("The call should have timed out");
+    } catch (ExecutionException e) {
+      assertTrue("Failed with " + e.getCause(), e.getCause() instanceof SocketTimeoutException);
+    }
+  }
+
+  public void testWaitingCallsFailOnShutdown() throws Exception {
+    client = new PooledRestClient(1, 1, 1000, 5000);
+
+    CompletableFuture<RestResponse> running = client.get(url("localhost", "RUNNING", 300));
+    List<CompletableFuture<RestResponse>> waiting = new ArrayList<CompletableFuture<RestResponse>>();
+    for (int i = 0; i < 3; i++) {
+      waiting.add(client.get(url("localhost", "WAITING" + i, 0)));
+    }
+    client.shutdown();
+
+    for (CompletableFuture<RestResponse> future : waiting) {
+      try {
+        future.get(5, TimeUnit.SECONDS);
+        fail("A waiting call should fail once the client is shut down");
+      } catch (ExecutionException e) {
+        assertTrue("Failed with " + e.getCause(), e.getCause() instanceof RejectedExecutionException);
+      }
+    }
+    // The call that was already running finishes either way.
+    try {
+      running.get(5, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      // Interrupted by the shutdown.
+    }
+  }
+}